@@ -0,0 +1,53 @@
+package no.ntnu.datakomm.benchmarks;
+
+import no.ntnu.datakomm.chat.ChatListener;
+import no.ntnu.datakomm.chat.TextMessage;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A chat listener that hands everything it receives to a JMH blackhole, so the parsing work can not be
+ * optimized away.
+ */
+class BenchmarkListener implements ChatListener {
+    private final Blackhole blackhole;
+
+    BenchmarkListener(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onDisconnect() {
+        blackhole.consume(0);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        blackhole.consume(success);
+        blackhole.consume(errMsg);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        blackhole.consume(message);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        blackhole.consume(errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        blackhole.consume(usernames);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        blackhole.consume(commands);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        blackhole.consume(errMsg);
+    }
+}
@@ -0,0 +1,44 @@
+package no.ntnu.datakomm.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so every result reports the allocation rate
+ * (gc.alloc.rate.norm: bytes per operation) next to the throughput. Accepts the usual JMH command-line options,
+ * for example a benchmark name pattern, -l to list the benchmarks or -rf json -rff result.json to save a baseline.
+ */
+public class BenchmarkRunner {
+    /**
+     * @param args JMH command-line options
+     * @throws RunnerException             When a benchmark fails
+     * @throws CommandLineOptionException When the options can not be parsed
+     * @throws IOException                When the help text can not be printed
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        Runner runner = new Runner(options);
+        if (commandLine.shouldList()) {
+            runner.list();
+        } else if (commandLine.shouldListWithParams()) {
+            runner.listWithParams(commandLine);
+        } else {
+            runner.run();
+        }
+    }
+}
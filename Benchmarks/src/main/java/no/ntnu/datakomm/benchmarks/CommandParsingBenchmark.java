@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.benchmarks;
+
+import no.ntnu.datakomm.chat.CommandDecoder;
+import no.ntnu.datakomm.chat.TCPClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How fast the client turns received bytes into listener calls: framing, command lookup and argument parsing,
+ * with one listener attached. Uses the same command registry and decoder the TCPClient reads with, including the
+ * metrics it records for every read, line and listener call. Only the user list depends on the number of users.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private CommandDecoder decoder;
+    private ByteBuffer publicMessage;
+    private ByteBuffer privateMessage;
+
+    /**
+     * A user list line, in its own state so that only the userList benchmark runs once per user count.
+     */
+    @State(Scope.Thread)
+    public static class UserList {
+        @Param({"10", "100", "1000", "10000"})
+        public int userCount;
+
+        private ByteBuffer line;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            StringBuilder users = new StringBuilder("users");
+            for (int i = 0; i < userCount; i++) {
+                users.append(" user").append(i);
+            }
+            line = encode(users.append('\n').toString());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        TCPClient client = new TCPClient();
+        client.addListener(new BenchmarkListener(blackhole));
+        decoder = new CommandDecoder(client.getCommandRegistry(), client.getMetrics());
+
+        publicMessage = encode("msg alice Hello everybody, this is a fairly ordinary chat message\n");
+        privateMessage = encode("privmsg bob Hi Bob, this one is only for you\n");
+    }
+
+    @Benchmark
+    public void publicMessage() {
+        decoder.decode(publicMessage.duplicate());
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        decoder.decode(privateMessage.duplicate());
+    }
+
+    @Benchmark
+    public void userList(UserList users) {
+        decoder.decode(users.line.duplicate());
+    }
+
+    private static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,51 @@
+package no.ntnu.datakomm.benchmarks;
+
+import no.ntnu.datakomm.chat.CommandDecoder;
+import no.ntnu.datakomm.chat.TCPClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The cost of delivering one received message to a growing number of listeners, with the decoder the TCPClient
+ * reads with, which also times every listener call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerFanOutBenchmark {
+    @Param({"1", "4", "16", "64", "256"})
+    public int listenerCount;
+
+    private CommandDecoder decoder;
+    private ByteBuffer message;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        TCPClient client = new TCPClient();
+        for (int i = 0; i < listenerCount; i++) {
+            client.addListener(new BenchmarkListener(blackhole));
+        }
+        decoder = new CommandDecoder(client.getCommandRegistry(), client.getMetrics());
+        message = ByteBuffer.wrap("msg alice Hello everybody\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void deliverMessage() {
+        decoder.decode(message.duplicate());
+    }
+}
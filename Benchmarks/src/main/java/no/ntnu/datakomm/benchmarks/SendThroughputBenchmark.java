@@ -0,0 +1,76 @@
+package no.ntnu.datakomm.benchmarks;
+
+import no.ntnu.datakomm.chat.NioEventLoop;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Outbound throughput over loopback: public messages sent to the embedded chat server, with the blocking and the
+ * non-blocking transport. Every invocation sends a batch and waits until the last message is written, so the
+ * result counts messages that reached the socket, not just messages queued.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendThroughputBenchmark {
+    private static final int BATCH = 100;
+
+    @Param({"blocking", "nio"})
+    public String transport;
+
+    private ChatServer server;
+    private NioEventLoop eventLoop;
+    private TCPClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new ChatServer(0);
+        server.start();
+        if ("nio".equals(transport)) {
+            eventLoop = new NioEventLoop();
+        }
+        client = new TCPClient(eventLoop);
+        if (!client.connect(server.getHost(), server.getPort())) {
+            throw new IOException("Could not connect: " + client.getLastError());
+        }
+        // Read the msgok responses, so the server never blocks on a full socket
+        client.startListenThread();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.disconnect();
+        if (eventLoop != null) {
+            eventLoop.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendPublicMessages() {
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < BATCH; i++) {
+            last = client.sendPublicMessage("Benchmark message with a typical length for a chat line");
+        }
+        last.join();
+    }
+}
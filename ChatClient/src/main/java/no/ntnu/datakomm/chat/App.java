@@ -4,18 +4,34 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Tab;
+import javafx.scene.control.TabPane;
+import javafx.scene.control.ToolBar;
 import javafx.scene.image.Image;
+import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 
 /**
- * Class representing the main Graphical User Interface (GUI). JavaFX interface.
+ * Class representing the main Graphical User Interface (GUI). JavaFX interface. Every chat session is shown in a
+ * tab of its own, and all sessions share the threads of one SessionManager.
  */
 public class App extends Application {
+    // Threads shared by all sessions, set with -Dchat.io.threads=... and -Dchat.dispatch.threads=...
+    private static final int IO_THREADS = Integer.getInteger("chat.io.threads", 1);
+    private static final int DISPATCH_THREADS = Integer.getInteger("chat.dispatch.threads", 2);
+
+    private SessionManager sessions;
+    // The controllers of the open tabs
+    private final List<GUIController> controllers = new ArrayList<>();
 
     public static void main(String[] args) {
         launch(args);
@@ -36,8 +52,21 @@ public class App extends Application {
         boolean loaded = false;
         if (fxmlUrl != null && cssUrl != null && iconUrl != null) {
             try {
-                root = FXMLLoader.load(fxmlUrl);
-                Scene scene = new Scene(root, 600, 400);
+                sessions = new SessionManager(IO_THREADS, DISPATCH_THREADS);
+                TabPane tabs = new TabPane();
+                addSessionTab(tabs, fxmlUrl);
+                Button newSessionBtn = new Button("New session");
+                newSessionBtn.setOnAction(event -> {
+                    try {
+                        addSessionTab(tabs, fxmlUrl);
+                    } catch (IOException e) {
+                        System.out.println("Error while loading FXML: " + e.getMessage());
+                    }
+                });
+                BorderPane window = new BorderPane(tabs);
+                window.setTop(new ToolBar(newSessionBtn));
+                root = window;
+                Scene scene = new Scene(root, 600, 470);
                 scene.getStylesheets().add(cssUrl.toURI().toString());
                 primaryStage.setTitle("NTNU Ålesund - ChatClient");
                 primaryStage.setScene(scene);
@@ -63,4 +92,48 @@ public class App extends Application {
             Platform.exit();
         }
     }
+
+    /**
+     * Open a new session and show it in a new tab. Closing the tab closes the session.
+     *
+     * @param tabs    The tab pane
+     * @param fxmlUrl The layout of a session
+     * @throws IOException When the layout could not be loaded
+     */
+    private void addSessionTab(TabPane tabs, URL fxmlUrl) throws IOException {
+        SessionManager.Session session = sessions.openSession();
+        GUIController controller = new GUIController(session);
+        FXMLLoader loader = new FXMLLoader(fxmlUrl);
+        loader.setControllerFactory(type -> controller);
+        Parent content;
+        try {
+            content = loader.load();
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+        controllers.add(controller);
+        Tab tab = new Tab();
+        tab.textProperty().bind(controller.titleProperty());
+        tab.setContent(content);
+        tab.setOnClosed(event -> {
+            controllers.remove(controller);
+            controller.close();
+        });
+        tabs.getTabs().add(tab);
+        tabs.getSelectionModel().select(tab);
+    }
+
+    /**
+     * Called by JavaFX when the application exits: close all sessions.
+     */
+    @Override
+    public void stop() {
+        for (GUIController controller : controllers) {
+            controller.close();
+        }
+        if (sessions != null) {
+            sessions.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary framing mode of the chat protocol, an alternative to newline-terminated lines. A server that supports
+ * it lists "binary" in its supported commands. The client sends "binary" and frames everything it sends after that
+ * line; the server answers "binaryok" and frames everything it sends after that line.
+ * <p>
+ * A frame is a type byte, the payload length as an unsigned LEB128 varint, and the payload. A command frame holds
+ * one protocol command in UTF-8, exactly as it would be sent as a line, except that it may contain newlines.
+ * Frames of unknown types are skipped, so new types can be added without breaking old receivers.
+ */
+public final class BinaryFraming {
+    /**
+     * The command that starts framing, and the word servers list in their supported commands
+     */
+    public static final String COMMAND = "binary";
+    /**
+     * The server's answer, the last line it sends unframed
+     */
+    public static final String RESPONSE = "binaryok";
+    /**
+     * Frame type of a protocol command
+     */
+    public static final int TYPE_COMMAND = 1;
+    /**
+     * Largest payload accepted, to stop a corrupt length from allocating huge buffers
+     */
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    private BinaryFraming() {
+    }
+
+    /**
+     * Put a payload into a command frame.
+     *
+     * @param payload The payload, from its position to its limit. It is not consumed.
+     * @return The frame, ready for writing
+     */
+    public static ByteBuffer frame(ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(1 + varintSize(length) + length);
+        frame.put((byte) TYPE_COMMAND);
+        putVarint(frame, length);
+        frame.put(payload.duplicate());
+        return frame.flip();
+    }
+
+    /**
+     * Write a command frame to a stream.
+     *
+     * @param out     The stream
+     * @param payload The payload
+     * @throws IOException When writing fails
+     */
+    public static void writeFrame(OutputStream out, byte[] payload) throws IOException {
+        out.write(frame(ByteBuffer.wrap(payload)).array());
+    }
+
+    /**
+     * Read the next command frame from a stream, skipping frames of other types.
+     *
+     * @param in The stream
+     * @return The payload, or null at the end of the stream
+     * @throws IOException When reading fails, or the stream ends inside a frame or holds an invalid length
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        while (true) {
+            int type = in.read();
+            if (type < 0) {
+                return null;
+            }
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("End of stream inside a frame header");
+                }
+                length |= (b & 0x7f) << shift;
+                if (b < 0x80) {
+                    break;
+                }
+                if (shift >= 21) {
+                    throw new ProtocolException("Frame length too long");
+                }
+            }
+            checkLength(length);
+            byte[] payload = in.readNBytes(length);
+            if (payload.length < length) {
+                throw new EOFException("End of stream inside a frame");
+            }
+            if (type == TYPE_COMMAND) {
+                return payload;
+            }
+        }
+    }
+
+    /**
+     * @param length A payload length read from a frame header
+     * @throws ProtocolException When the length is larger than allowed
+     */
+    static void checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Frame length out of range: " + length);
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,42 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One line of the chat window: a message and how it should be shown.
+ */
+public class ChatEntry {
+    /**
+     * How a line is shown.
+     */
+    public enum Kind {
+        /** A message we sent */
+        SENT,
+        /** A message we tried to send without a connection */
+        FAILED,
+        /** A message from another user */
+        RECEIVED,
+        /** Information from the client or the server */
+        INFO,
+        /** An error */
+        WARNING
+    }
+
+    private final Kind kind;
+    private final TextMessage message;
+
+    /**
+     * @param kind    How the line is shown
+     * @param message The message
+     */
+    public ChatEntry(Kind kind, TextMessage message) {
+        this.kind = kind;
+        this.message = message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public TextMessage getMessage() {
+        return message;
+    }
+}
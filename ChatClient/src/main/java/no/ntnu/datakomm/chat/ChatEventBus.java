@@ -0,0 +1,319 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decouples reading the socket from running listener callbacks. Register the bus as a listener on a TCPClient and
+ * subscribe the real listeners to the bus. Every event is put into a bounded ring buffer per subscriber and
+ * delivered on that subscriber's executor, so a slow listener only delays itself and not the socket reading.
+ * <p>
+ * Each subscriber gets its events in the order they arrived, and never from two threads at the same time. When a
+ * subscriber's buffer is full, the overflow policy of the bus decides what happens.
+ */
+public class ChatEventBus implements ChatListener {
+    private static final Logger LOGGER = Logger.getLogger(ChatEventBus.class.getName());
+
+    /**
+     * What to do with a new event when a subscriber's buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the subscriber has made room. Nothing is lost, but a slow subscriber slows down the reading
+         * thread again.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest buffered event to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace a buffered user list or supported commands event with the newer one, since only the latest one
+         * matters. Other events drop the oldest buffered event when the buffer is full.
+         */
+        COALESCE
+    }
+
+    // Event kinds. Only the snapshot kinds can be coalesced.
+    private static final int KIND_OTHER = 0;
+    private static final int KIND_USERS = 1;
+    private static final int KIND_SUPPORTED = 2;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param capacity Number of events buffered per subscriber
+     * @param policy   What to do when a subscriber's buffer is full
+     */
+    public ChatEventBus(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Subscribe a listener. Its callbacks run on the common ForkJoinPool.
+     *
+     * @param listener The listener
+     */
+    public void subscribe(ChatListener listener) {
+        subscribe(listener, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Subscribe a listener with its own executor. The executor may be shared with other subscribers, the bus makes
+     * sure each listener still gets one callback at a time.
+     *
+     * @param listener The listener
+     * @param executor The executor that runs the listener's callbacks
+     */
+    public void subscribe(ChatListener listener, Executor executor) {
+        subscribers.add(new Subscriber(listener, executor));
+    }
+
+    /**
+     * Unsubscribe a listener. Events already buffered for it are discarded.
+     *
+     * @param listener The listener
+     */
+    public void unsubscribe(ChatListener listener) {
+        for (Subscriber s : subscribers) {
+            if (s.listener == listener) {
+                s.active = false;
+                subscribers.remove(s);
+            }
+        }
+    }
+
+    /**
+     * @return Number of events dropped so far because a subscriber's buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void onDisconnect() {
+        publish(KIND_OTHER, ChatListener::onDisconnect);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        publish(KIND_OTHER, l -> l.onLoginResult(success, errMsg));
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        publish(KIND_OTHER, l -> l.onMessageReceived(message));
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        publish(KIND_OTHER, l -> l.onMessageError(errMsg));
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        publish(KIND_USERS, l -> l.onUserList(usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        publish(KIND_SUPPORTED, l -> l.onSupportedCommands(commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        publish(KIND_OTHER, l -> l.onCommandError(errMsg));
+    }
+
+    @Override
+    public void onUserJoined(String username) {
+        publish(KIND_OTHER, l -> l.onUserJoined(username));
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+        publish(KIND_OTHER, l -> l.onUserLeft(username));
+    }
+
+    /**
+     * Hand an event to every subscriber.
+     *
+     * @param kind   The kind of event, used for coalescing
+     * @param action The callback to run on each listener
+     */
+    private void publish(int kind, Consumer<ChatListener> action) {
+        for (Subscriber s : subscribers) {
+            s.offer(kind, action);
+        }
+    }
+
+    /**
+     * One buffered event. The action of a buffered snapshot event can be replaced while it waits (coalescing).
+     */
+    private static class Event {
+        final int kind;
+        Consumer<ChatListener> action;
+
+        Event(int kind, Consumer<ChatListener> action) {
+            this.kind = kind;
+            this.action = action;
+        }
+    }
+
+    /**
+     * A listener with its ring buffer and executor.
+     */
+    private class Subscriber implements Runnable {
+        // Most events delivered by one drain task before it gives the executor thread back
+        private static final int DRAIN_BATCH = 64;
+
+        private final ChatListener listener;
+        private final Executor executor;
+        private final Event[] ring = new Event[capacity];
+        private int head = 0;
+        private int size = 0;
+        // True while a drain task is submitted or running
+        private boolean scheduled = false;
+        // Cleared when the listener is unsubscribed, so events still buffered are not delivered
+        private volatile boolean active = true;
+        // Buffered snapshot events that newer ones of the same kind can replace, indexed by kind
+        private final Event[] coalescable = new Event[3];
+
+        Subscriber(ChatListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        /**
+         * Buffer an event, applying the overflow policy if the buffer is full, and make sure a drain task runs.
+         */
+        void offer(int kind, Consumer<ChatListener> action) {
+            boolean schedule;
+            synchronized (this) {
+                if (policy == OverflowPolicy.COALESCE && kind != KIND_OTHER && coalescable[kind] != null) {
+                    coalescable[kind].action = action;
+                    return;
+                }
+                if (size == capacity) {
+                    if (policy == OverflowPolicy.BLOCK) {
+                        if (!awaitRoom()) {
+                            return;
+                        }
+                    } else {
+                        removeHead();
+                        dropped.increment();
+                    }
+                }
+                Event event = new Event(kind, action);
+                ring[(head + size) % capacity] = event;
+                size++;
+                if (kind != KIND_OTHER) {
+                    coalescable[kind] = event;
+                }
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        /**
+         * Submit the drain task. When the executor rejects it, because it is shut down or saturated, the events are
+         * delivered on the calling thread instead, so they are not left in the buffer with no drain task to come.
+         */
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(Level.FINE, "Executor rejected the drain task, delivering on the calling thread", e);
+                while (drainBatch()) {
+                    // Keep delivering until the buffer is empty
+                }
+            }
+        }
+
+        /**
+         * Wait until the buffer has room. Must hold the lock.
+         *
+         * @return false if the thread was interrupted while waiting
+         */
+        private boolean awaitRoom() {
+            try {
+                while (size == capacity) {
+                    wait();
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.increment();
+                return false;
+            }
+        }
+
+        /**
+         * Take the oldest event out of the buffer. Must hold the lock.
+         */
+        private Event removeHead() {
+            Event event = ring[head];
+            ring[head] = null;
+            head = (head + 1) % capacity;
+            size--;
+            if (coalescable[event.kind] == event) {
+                coalescable[event.kind] = null;
+            }
+            notifyAll();
+            return event;
+        }
+
+        /**
+         * The drain task: deliver a batch of buffered events, then resubmit itself if more are waiting.
+         */
+        @Override
+        public void run() {
+            if (drainBatch()) {
+                schedule();
+            }
+        }
+
+        /**
+         * Deliver up to DRAIN_BATCH buffered events.
+         *
+         * @return true if more events are waiting, false if the buffer is empty and the drain task has ended
+         */
+        private boolean drainBatch() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Event event;
+                synchronized (this) {
+                    if (size == 0) {
+                        scheduled = false;
+                        return false;
+                    }
+                    event = removeHead();
+                }
+                if (!active) {
+                    continue;
+                }
+                try {
+                    event.action.accept(listener);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener failed", e);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -60,4 +60,22 @@ public interface ChatListener {
      */
     public void onCommandError(String errMsg);
 
+    /**
+     * This method is called when a user comes online. Only called when presence tracking is on, see
+     * TCPClient.enablePresence().
+     *
+     * @param username The user that logged in
+     */
+    default void onUserJoined(String username) {
+    }
+
+    /**
+     * This method is called when a user goes offline. Only called when presence tracking is on, see
+     * TCPClient.enablePresence().
+     *
+     * @param username The user that left
+     */
+    default void onUserLeft(String username) {
+    }
+
 }
@@ -0,0 +1,345 @@
+package no.ntnu.datakomm.chat;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Runtime metrics of one TCPClient: bytes and lines in both directions, lines per command word, parse time, time
+ * spent in each listener, the outbound queue, and the response time of requests. Together they tell whether the
+ * network, the parser or a listener is the bottleneck.
+ * <p>
+ * Counters are LongAdders and histograms are lock-free, so recording costs a few nanoseconds and no allocation on
+ * the I/O threads. Read the metrics with snapshot(), every period with scheduleSnapshots(), or through JMX after
+ * registerMBean().
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+    // Most distinct command words counted separately. Any others, for example garbage from a broken server, are
+    // counted together, so the table cannot grow without bounds.
+    private static final int MAX_COMMAND_WORDS = 64;
+    private static final String OTHER_COMMANDS = "(other)";
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder linesIn = new LongAdder();
+    private final LongAdder linesOut = new LongAdder();
+    private final CommandCounters commandsIn = new CommandCounters();
+    private final Map<String, LongAdder> commandsOut = new ConcurrentHashMap<>();
+    private final Histogram parseTime = new Histogram();
+    private final Map<ChatListener, Histogram> dispatchTime = new ConcurrentHashMap<>();
+    private final Histogram queueDepthOnSend = new Histogram();
+    private final Map<String, Histogram> responseTime = new ConcurrentHashMap<>();
+    private volatile IntSupplier queueDepth = () -> 0;
+
+    private ObjectName mbeanName;
+
+    /**
+     * Record bytes read from the socket.
+     *
+     * @param count Number of bytes
+     */
+    void bytesRead(int count) {
+        bytesIn.add(count);
+    }
+
+    /**
+     * Record bytes written to the socket.
+     *
+     * @param count Number of bytes
+     */
+    void bytesWritten(long count) {
+        bytesOut.add(count);
+    }
+
+    /**
+     * Record one line received.
+     *
+     * @param line      Buffer holding the line
+     * @param start     Index of the first byte of the command word
+     * @param wordEnd   Exclusive end of the command word
+     * @param wordHash  Hash of the command word, as computed by CommandRegistry.step()
+     */
+    void lineReceived(byte[] line, int start, int wordEnd, int wordHash) {
+        linesIn.increment();
+        commandsIn.counter(line, start, wordEnd, wordHash).increment();
+    }
+
+    /**
+     * Record a command queued for sending.
+     *
+     * @param cmd   The command
+     * @param depth Number of commands already waiting in the queue
+     */
+    void commandQueued(String cmd, int depth) {
+        int wordEnd = cmd.indexOf(' ');
+        String word = wordEnd < 0 ? cmd : cmd.substring(0, wordEnd);
+        LongAdder counter = commandsOut.get(word);
+        if (counter == null) {
+            counter = commandsOut.size() < MAX_COMMAND_WORDS
+                    ? commandsOut.computeIfAbsent(word, w -> new LongAdder())
+                    : commandsOut.computeIfAbsent(OTHER_COMMANDS, w -> new LongAdder());
+        }
+        counter.increment();
+        queueDepthOnSend.record(depth);
+    }
+
+    /**
+     * Record one command completely written to the socket.
+     */
+    void lineWritten() {
+        linesOut.increment();
+    }
+
+    /**
+     * Record the time spent decoding one read, not counting the handlers.
+     *
+     * @param nanos The time
+     */
+    void parsed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    /**
+     * Start keeping the dispatch time of a listener that was added.
+     *
+     * @param listener The listener
+     */
+    void track(ChatListener listener) {
+        dispatchTime.putIfAbsent(listener, new Histogram());
+    }
+
+    /**
+     * Record the time a listener spent handling one event. Nothing is recorded for a listener that is not tracked,
+     * for example one that was removed while the event was being dispatched, so no histogram is left behind for it.
+     *
+     * @param listener The listener
+     * @param started  System.nanoTime() before the listener was called
+     */
+    void dispatched(ChatListener listener, long started) {
+        Histogram histogram = dispatchTime.get(listener);
+        if (histogram != null) {
+            histogram.record(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Stop keeping the dispatch time of a listener that was removed.
+     *
+     * @param listener The listener
+     */
+    void forget(ChatListener listener) {
+        dispatchTime.remove(listener);
+    }
+
+    /**
+     * Get the histogram for the response time of a kind of request.
+     *
+     * @param command The command word of the request, for example "users"
+     * @return The histogram, in nanoseconds
+     */
+    Histogram responseTime(String command) {
+        return responseTime.computeIfAbsent(command, c -> new Histogram());
+    }
+
+    /**
+     * Set where the current outbound queue depth is read from.
+     *
+     * @param queueDepth Gives the number of commands waiting to be written
+     */
+    void setQueueDepthGauge(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * @return All metrics as they are now
+     */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(this);
+    }
+
+    /**
+     * Take a snapshot every period and hand what happened during the period to a consumer: the counters and
+     * histograms of each snapshot cover only that period.
+     *
+     * @param executor The executor that takes the snapshots
+     * @param period   Time between snapshots
+     * @param consumer Gets each snapshot, on the executor's thread
+     * @return The scheduled task, cancel it to stop the snapshots
+     */
+    public ScheduledFuture<?> scheduleSnapshots(ScheduledExecutorService executor, Duration period,
+                                                Consumer<MetricsSnapshot> consumer) {
+        MetricsSnapshot[] previous = {snapshot()};
+        return executor.scheduleAtFixedRate(() -> {
+            MetricsSnapshot current = snapshot();
+            consumer.accept(current.minus(previous[0]));
+            previous[0] = current;
+        }, period.toNanos(), period.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Make the metrics visible through JMX, in the platform MBean server.
+     *
+     * @param name Name that tells this client apart from others in the same JVM
+     * @return The object name the metrics are registered under
+     * @throws JMException When the metrics could not be registered, for example because the name is taken
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName("no.ntnu.datakomm.chat:type=ClientMetrics,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        mbeanName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Remove the metrics from JMX, if they were registered.
+     *
+     * @throws JMException When the metrics could not be unregistered
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (mbeanName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mbeanName)) {
+                server.unregisterMBean(mbeanName);
+            }
+            mbeanName = null;
+        }
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getLinesIn() {
+        return linesIn.sum();
+    }
+
+    @Override
+    public long getLinesOut() {
+        return linesOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommandsIn() {
+        return commandsIn.sums();
+    }
+
+    @Override
+    public Map<String, Long> getCommandsOut() {
+        Map<String, Long> sums = new HashMap<>();
+        commandsOut.forEach((word, counter) -> sums.put(word, counter.sum()));
+        return sums;
+    }
+
+    @Override
+    public Histogram.Snapshot getParseTime() {
+        return parseTime.snapshot();
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getDispatchTime() {
+        Map<String, Histogram.Snapshot> snapshots = new HashMap<>();
+        dispatchTime.forEach((listener, histogram) -> snapshots.put(listenerName(listener), histogram.snapshot()));
+        return snapshots;
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public Histogram.Snapshot getOutboundQueueDepthOnSend() {
+        return queueDepthOnSend.snapshot();
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getResponseTime() {
+        Map<String, Histogram.Snapshot> snapshots = new HashMap<>();
+        responseTime.forEach((command, histogram) -> snapshots.put(command, histogram.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * @return A name for a listener that tells it apart from other listeners of the same class
+     */
+    private static String listenerName(ChatListener listener) {
+        return listener.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(listener));
+    }
+
+    /**
+     * Counters for the command words received, looked up by the raw bytes of the word so the decoder does not
+     * have to create a String. The array is replaced when a word is added, so neither lookups nor adding take a
+     * lock. Once the table is full, unknown words go to the shared counter without copying them.
+     */
+    private static class CommandCounters {
+        private final AtomicReference<Entry[]> entries = new AtomicReference<>(new Entry[0]);
+        private final LongAdder other = new LongAdder();
+
+        LongAdder counter(byte[] bytes, int start, int end, int hash) {
+            while (true) {
+                Entry[] current = entries.get();
+                for (Entry entry : current) {
+                    if (entry.hash == hash && Arrays.equals(entry.word, 0, entry.word.length, bytes, start, end)) {
+                        return entry.count;
+                    }
+                }
+                if (current.length >= MAX_COMMAND_WORDS) {
+                    return other;
+                }
+                Entry added = new Entry(Arrays.copyOfRange(bytes, start, end), hash);
+                Entry[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = added;
+                if (entries.compareAndSet(current, updated)) {
+                    return added.count;
+                }
+                // Another thread added a word meanwhile, maybe this one: look again
+            }
+        }
+
+        Map<String, Long> sums() {
+            Map<String, Long> sums = new HashMap<>();
+            for (Entry entry : entries.get()) {
+                sums.put(new String(entry.word, StandardCharsets.UTF_8), entry.count.sum());
+            }
+            long others = other.sum();
+            if (others > 0) {
+                sums.put(OTHER_COMMANDS, others);
+            }
+            return sums;
+        }
+
+        private static class Entry {
+            final byte[] word;
+            final int hash;
+            final LongAdder count = new LongAdder();
+
+            Entry(byte[] word, int hash) {
+                this.word = word;
+                this.hash = hash;
+            }
+        }
+    }
+}
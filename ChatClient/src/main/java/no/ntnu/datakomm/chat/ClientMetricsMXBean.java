@@ -0,0 +1,66 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+
+/**
+ * The metrics of a TCPClient as seen through JMX, for example in JConsole or VisualVM. All times are nanoseconds.
+ * Counters and histograms count from the moment the client was created.
+ */
+public interface ClientMetricsMXBean {
+
+    /**
+     * @return Bytes received from the server
+     */
+    long getBytesIn();
+
+    /**
+     * @return Bytes written to the server
+     */
+    long getBytesOut();
+
+    /**
+     * @return Lines received from the server
+     */
+    long getLinesIn();
+
+    /**
+     * @return Commands written to the server
+     */
+    long getLinesOut();
+
+    /**
+     * @return Lines received, per command word
+     */
+    Map<String, Long> getCommandsIn();
+
+    /**
+     * @return Commands sent, per command word
+     */
+    Map<String, Long> getCommandsOut();
+
+    /**
+     * @return Time spent framing lines and looking up their handlers, per read, not counting the handlers themselves
+     */
+    Histogram.Snapshot getParseTime();
+
+    /**
+     * @return Time spent in each listener per event, keyed by listener
+     */
+    Map<String, Histogram.Snapshot> getDispatchTime();
+
+    /**
+     * @return Commands waiting to be written right now
+     */
+    int getOutboundQueueDepth();
+
+    /**
+     * @return Commands already waiting when a new command was queued
+     */
+    Histogram.Snapshot getOutboundQueueDepthOnSend();
+
+    /**
+     * @return Time from sending a login, users or help request until its response has been handled, keyed by
+     * command
+     */
+    Map<String, Histogram.Snapshot> getResponseTime();
+}
@@ -0,0 +1,374 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes the bytes received from the chat server and dispatches each line to the CommandHandler registered for its
+ * command word. Lines are framed directly from the read buffer and the command word is looked up by its bytes, so
+ * Strings are only created for the fields a handler asks for. Only a line that is split across two reads is copied, into a buffer that is reused.
+ * After the server has switched to binary framing (see BinaryFraming) the input is decoded as frames instead. A frame
+ * that is complete in the read buffer is dispatched where it is, a larger one is copied once into an array of
+ * exactly its length, which the length prefix makes possible.
+ * One decoder belongs to one connection and must only be used by one thread at a time.
+ */
+public class CommandDecoder {
+    private static final String[] NO_WORDS = new String[0];
+    private static final int INFLATE_BUFFER_SIZE = 8192;
+
+    private final CommandRegistry registry;
+    private final CommandLine commandLine = new CommandLine(this);
+    // Where bytes, lines and parse time are counted, null when not counted
+    private final ClientMetrics metrics;
+    // Time spent in handlers during the current decode() call
+    private long handlerNanos;
+
+    // Start of a line that did not fit in the previous read
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+
+    // Decompresses the input once the server has switched to the compressed wire mode, null before that
+    private Inflater inflater;
+    private byte[] inflated;
+    // True from startInflating() until the rest of the current read has been handed to the inflater
+    private boolean switchPending = false;
+
+    // True once the server has switched to binary framing
+    private boolean framed = false;
+    // True from startFrames() until the rest of the current input is decoded as frames
+    private boolean framingSwitchPending = false;
+    // Header of the frame being received: its type (-1 between frames), length and the varint shift so far
+    private int frameType = -1;
+    private int frameLength;
+    private int frameShift;
+    private boolean frameHeaderDone;
+    // Payload of a frame that did not fit in one read, and how much of it has been received
+    private byte[] framePayload;
+    private int frameFilled;
+
+    /**
+     * @param registry The handlers to dispatch the decoded lines to
+     */
+    public CommandDecoder(CommandRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * @param registry The handlers to dispatch the decoded lines to
+     * @param metrics  Where to count the bytes and lines received and the parse time, or null
+     */
+    public CommandDecoder(CommandRegistry registry, ClientMetrics metrics) {
+        this.registry = registry;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Decode all complete lines in the buffer and remember any trailing partial line until the next call.
+     * The buffer is consumed completely.
+     *
+     * @param in Bytes received from the server
+     * @throws UncheckedIOException With a ZipException when compressed input is corrupt, or a ProtocolException
+     *                              when a frame is invalid. The connection can not be used any more.
+     */
+    public void decode(ByteBuffer in) {
+        if (metrics == null) {
+            decodeInput(in);
+            return;
+        }
+        long started = System.nanoTime();
+        handlerNanos = 0;
+        metrics.bytesRead(in.remaining());
+        decodeInput(in);
+        metrics.parsed(System.nanoTime() - started - handlerNanos);
+    }
+
+    /**
+     * Decompress everything received after the current line. Called by the handler of the line after which the
+     * server starts compressing.
+     *
+     * @param inflater The decompressor, see WireCompression
+     */
+    void startInflating(Inflater inflater) {
+        this.inflater = inflater;
+        inflated = new byte[INFLATE_BUFFER_SIZE];
+        switchPending = true;
+    }
+
+    /**
+     * Decode everything received after the current line as frames. Called by the handler of the line after which
+     * the server starts binary framing.
+     */
+    void startFrames() {
+        framed = true;
+        framingSwitchPending = true;
+    }
+
+    private void decodeInput(ByteBuffer in) {
+        if (inflater == null || switchPending) {
+            decodeContent(in);
+            if (!switchPending) {
+                return;
+            }
+            // The rest of this read is already compressed
+            switchPending = false;
+        }
+        inflate(in);
+    }
+
+    /**
+     * Decode uncompressed input as lines or frames, switching to frames where the server did. Returns early, with
+     * the rest left in the buffer, when the server has switched to compression.
+     */
+    private void decodeContent(ByteBuffer in) {
+        while (true) {
+            if (framed) {
+                decodeFrames(in);
+            } else {
+                decodeLines(in);
+            }
+            if (!framingSwitchPending) {
+                return;
+            }
+            framingSwitchPending = false;
+        }
+    }
+
+    /**
+     * Decompress the input and decode the lines in it.
+     */
+    private void inflate(ByteBuffer in) {
+        inflater.setInput(in);
+        try {
+            while (true) {
+                int length = inflater.inflate(inflated, 0, inflated.length);
+                if (length > 0) {
+                    decodeContent(ByteBuffer.wrap(inflated, 0, length));
+                } else if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new ZipException("Corrupt compressed data: " + e.getMessage()));
+        }
+        in.position(in.limit());
+    }
+
+    private void decodeLines(ByteBuffer in) {
+        if (!in.hasArray()) {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    dispatchLine(pending, 0, pendingLength);
+                    pendingLength = 0;
+                    if (switchPending || framingSwitchPending) {
+                        return;
+                    }
+                } else {
+                    appendPending(b);
+                }
+            }
+            return;
+        }
+        byte[] bytes = in.array();
+        int start = in.arrayOffset() + in.position();
+        int end = in.arrayOffset() + in.limit();
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                if (pendingLength == 0) {
+                    dispatchLine(bytes, lineStart, i);
+                } else {
+                    appendPending(bytes, lineStart, i);
+                    dispatchLine(pending, 0, pendingLength);
+                    pendingLength = 0;
+                }
+                lineStart = i + 1;
+                if (switchPending || framingSwitchPending) {
+                    // Leave the rest, which is compressed or framed, in the buffer
+                    in.position(lineStart - in.arrayOffset());
+                    return;
+                }
+            }
+        }
+        appendPending(bytes, lineStart, end);
+        in.position(in.limit());
+    }
+
+    private void decodeFrames(ByteBuffer in) {
+        while (in.hasRemaining() && !switchPending) {
+            if (framePayload == null) {
+                if (!decodeFrameHeader(in)) {
+                    return;
+                }
+                if (frameLength <= in.remaining() && in.hasArray()) {
+                    // The whole payload is in the buffer, dispatch it from there
+                    int start = in.arrayOffset() + in.position();
+                    in.position(in.position() + frameLength);
+                    dispatchFrame(in.array(), start, start + frameLength);
+                    continue;
+                }
+                framePayload = new byte[frameLength];
+                frameFilled = 0;
+            }
+            int length = Math.min(in.remaining(), framePayload.length - frameFilled);
+            in.get(framePayload, frameFilled, length);
+            frameFilled += length;
+            if (frameFilled == framePayload.length) {
+                byte[] payload = framePayload;
+                framePayload = null;
+                dispatchFrame(payload, 0, payload.length);
+            }
+        }
+    }
+
+    /**
+     * Decode as much of a frame header as there is in the buffer.
+     *
+     * @return True when the header is complete
+     */
+    private boolean decodeFrameHeader(ByteBuffer in) {
+        if (frameType < 0) {
+            frameType = in.get() & 0xff;
+            frameLength = 0;
+            frameShift = 0;
+            frameHeaderDone = false;
+        }
+        while (!frameHeaderDone && in.hasRemaining()) {
+            byte b = in.get();
+            frameLength |= (b & 0x7f) << frameShift;
+            frameShift += 7;
+            if (b >= 0) {
+                frameHeaderDone = true;
+            } else if (frameShift > 21) {
+                throw new UncheckedIOException(new ProtocolException("Frame length too long"));
+            }
+        }
+        if (frameHeaderDone) {
+            try {
+                BinaryFraming.checkLength(frameLength);
+            } catch (ProtocolException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return frameHeaderDone;
+    }
+
+    /**
+     * Dispatch a complete frame. Frames of unknown types are skipped.
+     */
+    private void dispatchFrame(byte[] payload, int start, int end) {
+        int type = frameType;
+        frameType = -1;
+        if (type == BinaryFraming.TYPE_COMMAND) {
+            dispatchCommand(payload, start, end);
+        }
+    }
+
+    /**
+     * Dispatch one line, without its line terminator.
+     *
+     * @param line  Buffer holding the line
+     * @param start Index of the first byte of the line
+     * @param end   Index of the newline (exclusive end of the line)
+     */
+    private void dispatchLine(byte[] line, int start, int end) {
+        if (end > start && line[end - 1] == '\r') {
+            end--;
+        }
+        dispatchCommand(line, start, end);
+    }
+
+    /**
+     * Look up the handler for the command word of one command and call it. Unknown commands are ignored.
+     *
+     * @param line  Buffer holding the command
+     * @param start Index of the first byte of the command
+     * @param end   Exclusive end of the command
+     */
+    private void dispatchCommand(byte[] line, int start, int end) {
+        // Find the end of the command word and compute its hash in the same pass
+        int hash = CommandRegistry.HASH_SEED;
+        int wordEnd = start;
+        while (wordEnd < end && line[wordEnd] != ' ') {
+            hash = CommandRegistry.step(hash, line[wordEnd]);
+            wordEnd++;
+        }
+        CommandHandler handler = registry.lookup(line, start, wordEnd, hash);
+        if (metrics != null) {
+            metrics.lineReceived(line, start, wordEnd, hash);
+        }
+        if (handler != null) {
+            commandLine.set(line, start, wordEnd, end);
+            if (metrics == null) {
+                handler.handle(commandLine);
+            } else {
+                long started = System.nanoTime();
+                handler.handle(commandLine);
+                handlerNanos += System.nanoTime() - started;
+            }
+        }
+    }
+
+    /**
+     * Split a range of bytes into space-separated words. The array is sized exactly, empty words are skipped.
+     *
+     * @param line  Buffer holding the line
+     * @param start First byte of the range
+     * @param end   Exclusive end of the range
+     * @return The words
+     */
+    static String[] words(byte[] line, int start, int end) {
+        int count = 0;
+        boolean inWord = false;
+        for (int i = start; i < end; i++) {
+            boolean space = line[i] == ' ';
+            if (!space && !inWord) {
+                count++;
+            }
+            inWord = !space;
+        }
+        if (count == 0) {
+            return NO_WORDS;
+        }
+        String[] words = new String[count];
+        int w = 0;
+        int wordStart = -1;
+        for (int i = start; i <= end; i++) {
+            if (i == end || line[i] == ' ') {
+                if (wordStart >= 0) {
+                    words[w++] = string(line, wordStart, i);
+                    wordStart = -1;
+                }
+            } else if (wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        return words;
+    }
+
+    private static String string(byte[] line, int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private void appendPending(byte b) {
+        if (pendingLength == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingLength++] = b;
+    }
+
+    private void appendPending(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        System.arraycopy(bytes, start, pending, pendingLength, length);
+        pendingLength += length;
+    }
+}
@@ -0,0 +1,16 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Handles one command word received from the server. Handlers are registered in a CommandRegistry and called on
+ * the thread that reads the socket, so they should return quickly.
+ */
+@FunctionalInterface
+public interface CommandHandler {
+
+    /**
+     * Handle one incoming line.
+     *
+     * @param line The received line. The object is reused for the next line, so do not keep a reference to it
+     */
+    void handle(CommandLine line);
+}
@@ -0,0 +1,119 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A view of one line received from the server, handed to a CommandHandler. The view points straight into the
+ * decoder's buffer: nothing is copied, and Strings are only created by the accessor methods that return them.
+ * The same object is reused for every line, so it is only valid during the call to the handler.
+ */
+public class CommandLine {
+    private final CommandDecoder decoder;
+    private byte[] bytes;
+    private int start;
+    private int wordEnd;
+    private int argStart;
+    private int end;
+
+    /**
+     * @param decoder The decoder that fills this view
+     */
+    CommandLine(CommandDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * @return The decoder that decoded this line, for handlers that change how the rest of the stream is decoded
+     */
+    CommandDecoder decoder() {
+        return decoder;
+    }
+
+    /**
+     * Point the view at a new line.
+     *
+     * @param bytes   Buffer holding the line
+     * @param start   Index of the first byte of the command word
+     * @param wordEnd Exclusive end of the command word
+     * @param end     Exclusive end of the line, without the newline
+     */
+    void set(byte[] bytes, int start, int wordEnd, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.wordEnd = wordEnd;
+        this.argStart = Math.min(wordEnd + 1, end);
+        this.end = end;
+    }
+
+    /**
+     * @return The command word, for example "msg"
+     */
+    public String command() {
+        return string(start, wordEnd);
+    }
+
+    /**
+     * @return Everything after the command word, or "" if there is nothing
+     */
+    public String arguments() {
+        return string(argStart, end);
+    }
+
+    /**
+     * @return Number of bytes after the command word
+     */
+    public int argumentLength() {
+        return end - argStart;
+    }
+
+    /**
+     * @return The first space-separated argument, for example the sender of a "msg"
+     */
+    public String firstArgument() {
+        return string(argStart, firstArgumentEnd());
+    }
+
+    /**
+     * @param names The table to look the argument up in
+     * @return The first space-separated argument, the same String as every earlier time it was looked up in the
+     * table, unless it has been replaced there
+     */
+    String firstArgument(NameTable names) {
+        return names.intern(bytes, argStart, firstArgumentEnd());
+    }
+
+    /**
+     * @return Everything after the first argument, for example the text of a "msg"
+     */
+    public String remainingArguments() {
+        return string(Math.min(firstArgumentEnd() + 1, end), end);
+    }
+
+    /**
+     * @return All space-separated arguments. The array is sized exactly, empty words are skipped
+     */
+    public String[] argumentWords() {
+        return CommandDecoder.words(bytes, argStart, end);
+    }
+
+    /**
+     * @return The whole line, without the newline
+     */
+    @Override
+    public String toString() {
+        return string(start, end);
+    }
+
+    private int firstArgumentEnd() {
+        for (int i = argStart; i < end; i++) {
+            if (bytes[i] == ' ') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private String string(int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+}
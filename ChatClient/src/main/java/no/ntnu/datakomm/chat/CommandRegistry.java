@@ -0,0 +1,165 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps command words received from the server to the handlers that process them. The lookup works on the raw
+ * bytes of the command word: the decoder computes the hash while it scans for the end of the word, and the
+ * registry finds the handler with one probe into an open-addressing table. No String is created for the lookup.
+ * <p>
+ * Registering and removing handlers is thread-safe. Each change builds a new table that replaces the old one, so
+ * lookups on the reading thread never take a lock.
+ */
+public class CommandRegistry {
+    // The initial hash value, before any byte is added with step()
+    static final int HASH_SEED = 0x811c9dc5;
+
+    private volatile Table table = new Table(16);
+
+    /**
+     * Register a handler for a command word, replacing any handler already registered for it.
+     *
+     * @param command The command word, for example "joke"
+     * @param handler The handler to call when a line with this command word arrives
+     * @return The handler that was registered before, or null
+     */
+    public synchronized CommandHandler register(String command, CommandHandler handler) {
+        if (command.isEmpty() || command.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("A command must be a single word: " + command);
+        }
+        CommandHandler previous = lookup(command);
+        Table current = table;
+        int size = current.count + (previous == null ? 1 : 0);
+        int capacity = current.words.length;
+        while (size * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table updated = new Table(capacity);
+        current.copyTo(updated, command);
+        updated.put(command.getBytes(StandardCharsets.UTF_8), handler);
+        table = updated;
+        return previous;
+    }
+
+    /**
+     * Remove the handler for a command word. Lines with this command word are ignored afterwards.
+     *
+     * @param command The command word
+     * @return The handler that was removed, or null
+     */
+    public synchronized CommandHandler unregister(String command) {
+        CommandHandler previous = lookup(command);
+        if (previous != null) {
+            Table current = table;
+            Table updated = new Table(current.words.length);
+            current.copyTo(updated, command);
+            table = updated;
+        }
+        return previous;
+    }
+
+    /**
+     * Find the handler for a command word.
+     *
+     * @param command The command word
+     * @return The handler, or null if none is registered
+     */
+    public CommandHandler lookup(String command) {
+        byte[] word = command.getBytes(StandardCharsets.UTF_8);
+        return lookup(word, 0, word.length, hash(word, 0, word.length));
+    }
+
+    /**
+     * Find the handler for a command word given as bytes.
+     *
+     * @param bytes Buffer holding the command word
+     * @param start Index of the first byte of the word
+     * @param end   Exclusive end of the word
+     * @param hash  The hash of the word, as computed by hash() or step()
+     * @return The handler, or null if none is registered
+     */
+    CommandHandler lookup(byte[] bytes, int start, int end, int hash) {
+        return table.get(bytes, start, end, hash);
+    }
+
+    /**
+     * Add one byte to a running hash (FNV-1a).
+     *
+     * @param hash The hash of the bytes so far
+     * @param b    The next byte
+     * @return The updated hash
+     */
+    static int step(int hash, byte b) {
+        return (hash ^ (b & 0xff)) * 0x01000193;
+    }
+
+    /**
+     * @return The hash of a range of bytes, the same value as step() gives when fed the bytes one by one
+     */
+    static int hash(byte[] bytes, int start, int end) {
+        int hash = HASH_SEED;
+        for (int i = start; i < end; i++) {
+            hash = step(hash, bytes[i]);
+        }
+        return hash;
+    }
+
+    /**
+     * An immutable open-addressing hash table, built once per change of the registry.
+     */
+    private static class Table {
+        private final int[] hashes;
+        private final byte[][] words;
+        private final CommandHandler[] handlers;
+        private int count = 0;
+
+        Table(int capacity) {
+            hashes = new int[capacity];
+            words = new byte[capacity][];
+            handlers = new CommandHandler[capacity];
+        }
+
+        void put(byte[] word, CommandHandler handler) {
+            int hash = hash(word, 0, word.length);
+            int mask = words.length - 1;
+            int slot = spread(hash) & mask;
+            while (words[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            words[slot] = word;
+            handlers[slot] = handler;
+            count++;
+        }
+
+        CommandHandler get(byte[] bytes, int start, int end, int hash) {
+            int mask = words.length - 1;
+            int slot = spread(hash) & mask;
+            byte[] word;
+            while ((word = words[slot]) != null) {
+                if (hashes[slot] == hash && Arrays.equals(word, 0, word.length, bytes, start, end)) {
+                    return handlers[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Copy all entries except one into another table.
+         */
+        void copyTo(Table other, String except) {
+            byte[] skip = except.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < words.length; i++) {
+                if (words[i] != null && !Arrays.equals(words[i], skip)) {
+                    other.put(words[i], handlers[i]);
+                }
+            }
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
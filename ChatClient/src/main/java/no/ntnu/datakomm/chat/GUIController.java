@@ -1,7 +1,13 @@
 package no.ntnu.datakomm.chat;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
 import javafx.fxml.FXML;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.HBox;
@@ -9,7 +15,22 @@ import javafx.scene.layout.Pane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
-import static java.lang.Thread.sleep;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
 
 import javafx.collections.ObservableList;
 
@@ -20,6 +41,8 @@ import javafx.collections.ObservableList;
  * react on every incoming event.
  */
 public class GUIController implements ChatListener {
+    private static final Logger LOGGER = Logger.getLogger(GUIController.class.getName());
+
 
     // The following variables are bound to GUI controls. For example, submitBtn is bound to the
     // "Submit" button in the GUI. The binding is done by JavaFX, by using correct attributes in the FXML layout file.
@@ -37,10 +60,10 @@ public class GUIController implements ChatListener {
     private Button helpBtn;
 
     @FXML
-    private VBox userList;
+    private ListView<String> userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<ChatEntry> messageList;
 
     @FXML
     private TextArea textInput;
@@ -58,27 +81,284 @@ public class GUIController implements ChatListener {
     private TitledPane serverStatus;
 
     @FXML
-    private ScrollPane outputScroll;
+    private TextField searchInput;
+
+
+    // The session shown by this controller, one tab of the window
+    private final SessionManager.Session session;
+    // Title of the tab: the server, or the session name until connected
+    private final StringProperty title = new SimpleStringProperty();
 
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
 
-    // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
-    // the GUI.
-    private Thread userPollThread;
+    // Active user list will be kept up to date by presence events from the server, or refreshed periodically when
+    // the server does not send them. Polling runs on the dispatch pool of the session manager, not a thread of its own.
+    private final AtomicBoolean userPolling = new AtomicBoolean(false);
+
+    // How often the user list is polled: every 3 seconds while it changes, backing off to 30 seconds while it does not
+    private static final Duration MIN_POLL_INTERVAL = Duration.ofSeconds(3);
+    private static final Duration MAX_POLL_INTERVAL = Duration.ofSeconds(30);
+
+    // How many chat lines are kept in memory before the oldest are paged out to disk, and how many at a time.
+    // Set with -Dchat.history.cap=... and -Dchat.history.page=...
+    private static final int HISTORY_CAP = Integer.getInteger("chat.history.cap", 1000);
+    private static final int HISTORY_PAGE = Integer.getInteger("chat.history.page", 200);
+
+    // Directory where received messages are logged, with a subdirectory per server, set with -Dchat.log.dir=...
+    // Nothing is logged when not set.
+    private static final String MESSAGE_LOG_DIR = System.getProperty("chat.log.dir");
+
+    // Use the compressed wire mode when the server supports it, set with -Dchat.compress=true
+    private static final boolean COMPRESS = Boolean.getBoolean("chat.compress");
+
+    // Use binary framing when the server supports it, so messages keep their line breaks, set with
+    // -Dchat.framing=binary
+    private static final boolean BINARY_FRAMING = "binary".equals(System.getProperty("chat.framing"));
+
+    // How often the client metrics are logged, in seconds, set with -Dchat.metrics.period=... Not logged when 0.
+    // The metrics can always be seen through JMX.
+    private static final int METRICS_PERIOD = Integer.getInteger("chat.metrics.period", 0);
+
+    // Periodic logging of the client metrics, null when not logged
+    private ScheduledFuture<?> metricsLogging;
+    // Log of the received messages from the server connected to, opened on the dispatch pool. Completes with null
+    // when not logged. Only changed on the GUI thread.
+    private CompletableFuture<MessageLog> messageLog = CompletableFuture.completedFuture(null);
+    // The server logged to, as named by logDirectoryName()
+    private String messageLogServer;
+
+    // The chat lines of messageList, with the older ones paged out to disk. Only used on the GUI thread.
+    private MessageHistory history;
+    // The vertical scroll bar of messageList, found once the list is shown
+    private ScrollBar messageScrollBar;
+
+    // GUI updates from the background threads, applied in batches once per frame. At most 8 ms of every frame
+    // is spent on them, so the GUI stays responsive during a message storm.
+    private static final long UPDATE_BUDGET_MS = 8;
+    private final AnimationTimer frameTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            // Runs once, on the next frame. The batcher asks for another frame if updates are left.
+            stop();
+            uiUpdates.runFrame();
+        }
+    };
+    private final UpdateBatcher uiUpdates = new UpdateBatcher(() -> Platform.runLater(frameTimer::start),
+            UPDATE_BUDGET_MS);
+
+    // The newest received messages, searchable from the search box. How many is set with -Dchat.search.cap=...
+    private static final int SEARCH_CAP = Integer.getInteger("chat.search.cap", MessageIndex.DEFAULT_CAPACITY);
+    private final MessageIndex messageIndex = new MessageIndex(SEARCH_CAP);
+    // The most search results shown at a time
+    private static final int SEARCH_LIMIT = 50;
+
+    // The usernames shown in userList, for finding changes without scanning the list. Only used on the GUI thread.
+    private final Set<String> shownUsers = new HashSet<>();
+
+    /**
+     * @param session The session to show. It is closed together with the controller.
+     */
+    public GUIController(SessionManager.Session session) {
+        this.session = session;
+        title.set(session.getName());
+    }
+
+    /**
+     * @return The title for the tab of this session, which changes when it connects to a server
+     */
+    public ReadOnlyStringProperty titleProperty() {
+        return title;
+    }
 
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
-        tcpClient = new TCPClient();
+        tcpClient = session.getClient();
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        userList.setCellFactory(list -> new UserCell());
+        messageList.setCellFactory(list -> new MessageCell());
+        messageList.getStyleClass().add("outputBox");
+        try {
+            history = new MessageHistory(messageList.getItems(), HISTORY_CAP, HISTORY_PAGE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not create the history page file", e);
+        }
+        session.addListener(this);
+        // Every message must be indexed, so not through the session's normal listeners, which may drop events
+        session.addLosslessListener(messageIndex);
+        publishMetrics();
+        // The scroll bar exists once the list has a skin
+        messageList.skinProperty().addListener((observable, oldSkin, newSkin)
+                -> Platform.runLater(this::watchMessageScrolling));
+        // Show jokes from the server as info messages
+        tcpClient.getCommandRegistry().register("joke", line -> {
+            String joke = line.arguments();
+            uiUpdates.submit(() -> addMsgToGui(true, new TextMessage("info", false, joke), true));
+        });
         setKeyAndClickListeners();
     }
 
+    /**
+     * Close the session shown by this controller, and release the metrics, message log and history page file.
+     * Called when the tab of the session is closed.
+     */
+    public void close() {
+        session.close();
+        if (metricsLogging != null) {
+            metricsLogging.cancel(false);
+        }
+        try {
+            tcpClient.getMetrics().unregisterMBean();
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Could not unregister the client metrics", e);
+        }
+        closeMessageLog();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not delete the history page file", e);
+            }
+        }
+    }
+
+    /**
+     * Make the client metrics visible in JMX, and log them periodically if configured.
+     */
+    private void publishMetrics() {
+        ClientMetrics metrics = tcpClient.getMetrics();
+        try {
+            metrics.registerMBean(session.getName());
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register the client metrics with JMX", e);
+        }
+        if (METRICS_PERIOD > 0) {
+            metricsLogging = metrics.scheduleSnapshots(session.getDispatchPool(), Duration.ofSeconds(METRICS_PERIOD),
+                    snapshot -> LOGGER.info(session.getName() + " metrics: " + snapshot));
+        }
+    }
+
+    /**
+     * Open the message log of a server, if logging is configured, and log all messages received from now on. Every
+     * server has a log of its own, in a subdirectory named after its host and port, so reconnecting to the same
+     * server continues the same log. A log has only one writer: while another session, or another client, logs the
+     * same server, this session logs to a subdirectory of its own, named after the server and the session.
+     * <p>
+     * The log is opened on the dispatch pool. Connect only when the returned future completes, so no message is
+     * missed. The logged messages are then read back in the background, and the newest of them shown.
+     *
+     * @param host The host connected to
+     * @param port The port connected to
+     * @return A future that completes when new messages are logged, with the log or null when not logged
+     */
+    private CompletableFuture<MessageLog> openMessageLog(String host, int port) {
+        String server = logDirectoryName(host, port);
+        if (MESSAGE_LOG_DIR == null || MESSAGE_LOG_DIR.isEmpty() || server.equals(messageLogServer)) {
+            // Not logged, or reconnecting to the same server: the log and the shown messages are still there
+            return messageLog;
+        }
+        closeMessageLog();
+        messageLogServer = server;
+        // The logged messages go after what the list shows now, and before the messages that arrive from now on
+        List<ChatEntry> items = messageList.getItems();
+        ChatEntry anchor = items.isEmpty() ? null : items.get(items.size() - 1);
+        messageLog = CompletableFuture.supplyAsync(() -> {
+            MessageLog log = tryOpenMessageLog(server);
+            if (log != null) {
+                // Taken before listening, so the reader gets exactly the messages logged before
+                MessageLogReader reader = log.reader();
+                session.addLosslessListener(log);
+                session.getDispatchPool().execute(() -> replayMessageLog(reader, anchor));
+            }
+            return log;
+        }, session.getDispatchPool());
+        return messageLog;
+    }
+
+    /**
+     * Open the log of a server, or one of this session's own when that is in use.
+     *
+     * @return The log, or null if none could be opened
+     */
+    private MessageLog tryOpenMessageLog(String server) {
+        try {
+            MessageLog log = MessageLog.tryOpen(Path.of(MESSAGE_LOG_DIR, server));
+            if (log == null) {
+                LOGGER.info(session.getName() + ": the log of " + server + " is in use, using a log of its own");
+                log = MessageLog.tryOpen(Path.of(MESSAGE_LOG_DIR, server + "-" + session.getName()));
+                if (log == null) {
+                    LOGGER.warning(session.getName() + ": no message log available for " + server);
+                }
+            }
+            return log;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open the message log", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the logged messages into the search index, and show the newest of them. Runs on the dispatch pool, so a
+     * large log does not hold up the GUI.
+     *
+     * @param reader Reads the messages logged before this session started logging
+     * @param anchor The entry of the list after which the messages are shown, null to show them first
+     */
+    private void replayMessageLog(MessageLogReader reader, ChatEntry anchor) {
+        // Keep only as many of the logged messages as the chat window holds in memory
+        Deque<ChatEntry> newest = new ArrayDeque<>();
+        try {
+            reader.replay(logged -> {
+                if (newest.size() == HISTORY_CAP) {
+                    newest.removeFirst();
+                }
+                newest.addLast(new ChatEntry(ChatEntry.Kind.RECEIVED, logged.getMessage()));
+                // Older messages can be found with the search box, even when they are not shown. The index only
+                // keeps the newest of them. Messages received while the log is read are indexed first, so a search
+                // may list them after older logged ones.
+                messageIndex.add(logged.getMessage());
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the message log", e);
+        }
+        List<ChatEntry> entries = new ArrayList<>(newest);
+        uiUpdates.submit(() -> {
+            List<ChatEntry> items = messageList.getItems();
+            // Not found when it has been paged out: then everything shown arrived after it
+            int index = anchor == null ? 0 : items.lastIndexOf(anchor) + 1;
+            if (history == null) {
+                items.addAll(index, entries);
+            } else {
+                history.insert(index, entries);
+            }
+        });
+    }
+
+    /**
+     * Stop logging received messages, if they are logged. A log that is still being opened is closed once it is.
+     */
+    private void closeMessageLog() {
+        messageLog.thenAccept(log -> {
+            if (log != null) {
+                session.removeListener(log);
+                log.close();
+            }
+        });
+        messageLog = CompletableFuture.completedFuture(null);
+        messageLogServer = null;
+    }
+
+    /**
+     * @return The name of the log directory of a server: host and port, with the characters that are not safe in
+     * a file name replaced
+     */
+    private static String logDirectoryName(String host, int port) {
+        return host.trim().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9.-]", "_") + "_" + port;
+    }
+
     /**
      * Initialize handling for all GUI events: clicking on buttons, and key presses
      */
@@ -112,6 +392,44 @@ public class GUIController implements ChatListener {
         });
         // Mouse clicked on "Help" button
         helpBtn.setOnMouseClicked(event -> tcpClient.askSupportedCommands());
+        // "Enter" pressed in the search box
+        searchInput.setOnAction(event -> {
+            searchMessages(searchInput.getText());
+            searchInput.setText("");
+        });
+    }
+
+    /**
+     * Search the received messages and show the newest matches in the chat window as info messages.
+     * The query is a list of words that must all be in the message, optionally with "from:user" to limit the search
+     * to one sender, and "is:private" or "is:public".
+     *
+     * @param query The query typed in the search box
+     */
+    private void searchMessages(String query) {
+        StringBuilder words = new StringBuilder();
+        String sender = null;
+        Boolean privateOnly = null;
+        for (String term : query.trim().split("\\s+")) {
+            if (term.startsWith("from:")) {
+                sender = term.substring("from:".length());
+            } else if (term.equals("is:private")) {
+                privateOnly = true;
+            } else if (term.equals("is:public")) {
+                privateOnly = false;
+            } else {
+                words.append(term).append(' ');
+            }
+        }
+        List<TextMessage> results = messageIndex.search(words.toString(), sender, privateOnly, SEARCH_LIMIT);
+        addMsgToGui(true, new TextMessage("info", false, "Search \"" + query.trim() + "\": "
+                + (results.isEmpty() ? "no messages found" : results.size() + " newest matches")), true);
+        // Oldest first, like the chat itself
+        for (int i = results.size() - 1; i >= 0; i--) {
+            TextMessage result = results.get(i);
+            addMsgToGui(true, new TextMessage("info", false, (result.isPrivate() ? "(private) " : "")
+                    + result.getSender() + ": " + result.getText()), true);
+        }
     }
 
     /**
@@ -161,58 +479,147 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
-        } else {
-            senderText = msg.getSender() + ":";
-        }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
+        // Decide how the message is shown, the list cells do the rest
+        ChatEntry.Kind kind;
         if (warning) {
-            // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
+            // This message is a warning/info
+            kind = msg.getSender().equals("err") ? ChatEntry.Kind.WARNING : ChatEntry.Kind.INFO;
+        } else if (local) {
+            if (tcpClient.isConnectionActive()) {
+                kind = ChatEntry.Kind.SENT;
             } else {
-                textStyle.add("info");
+                // Trying to send a message without an active connection
+                serverStatus.setText("Please login to send messages to server");
+                kind = ChatEntry.Kind.FAILED;
             }
         } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
+            kind = ChatEntry.Kind.RECEIVED;
+        }
+        ChatEntry entry = new ChatEntry(kind, msg);
+
+        // Follow new messages only if the user is looking at the newest ones, not reading older ones
+        boolean following = isScrolledToBottom();
+        if (history == null) {
+            messageList.getItems().add(entry);
+        } else {
+            if (following) {
+                history.releaseOlder();
+            }
+            history.add(entry);
+        }
+        if (following) {
+            messageList.scrollTo(messageList.getItems().size() - 1);
+        }
+    }
+
+    /**
+     * Find the scroll bar of the message list and load older messages from disk when the user scrolls to the top.
+     */
+    private void watchMessageScrolling() {
+        if (messageScrollBar != null) {
+            return;
+        }
+        for (Node node : messageList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                messageScrollBar = (ScrollBar) node;
+            }
+        }
+        if (messageScrollBar != null) {
+            messageScrollBar.valueProperty().addListener((observable, oldValue, newValue) -> {
+                if (newValue.doubleValue() <= messageScrollBar.getMin() && history != null && history.hasOlder()) {
+                    loadOlderMessages();
+                } else if (isScrolledToBottom() && history != null && history.hasNewer()) {
+                    // Back at the bottom: show the messages held back while older ones were loaded
+                    history.releaseOlder();
+                    messageList.scrollTo(messageList.getItems().size() - 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Load a page of older messages and keep the message that was at the top in view.
+     */
+    private void loadOlderMessages() {
+        try {
+            int loaded = history.loadOlder();
+            messageList.scrollTo(loaded);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not load older messages", e);
+        }
+    }
+
+    /**
+     * @return true if the newest message is visible, or the list can not be scrolled
+     */
+    private boolean isScrolledToBottom() {
+        return messageScrollBar == null || !messageScrollBar.isVisible()
+                || messageScrollBar.getValue() >= messageScrollBar.getMax() - 0.01;
+    }
+
+    /**
+     * A row of the chat window. The list view only creates rows for the visible messages and reuses them while
+     * scrolling, so a row's controls are created once and then only get new text and style.
+     */
+    private class MessageCell extends ListCell<ChatEntry> {
+        private final HBox message = new HBox();
+        private final VBox messageContent = new VBox();
+        private final Label messageSender = new Label();
+        private final Label messageText = new Label();
+        private final Pane spacer = new Pane();
+
+        MessageCell() {
+            messageSender.getStyleClass().add("sender");
+            messageText.setWrapText(true);
+            // Wrap long messages at the width of the list
+            messageText.maxWidthProperty().bind(messageList.widthProperty().subtract(40));
+            HBox.setHgrow(spacer, Priority.ALWAYS);
+            spacer.setMinSize(10, 1);
+        }
+
+        @Override
+        protected void updateItem(ChatEntry entry, boolean empty) {
+            super.updateItem(entry, empty);
+            if (empty || entry == null) {
+                setGraphic(null);
+                return;
+            }
+            TextMessage msg = entry.getMessage();
+            messageText.setText(msg.getText());
+            ObservableList<String> textStyle = messageText.getStyleClass();
+            textStyle.setAll("label", "message");
+            switch (entry.getKind()) {
+                case WARNING -> textStyle.add("warning");
+                case INFO -> textStyle.add("info");
+                case SENT -> textStyle.add("sentMessage");
+                case FAILED -> textStyle.add("failedMessage");
+                case RECEIVED -> textStyle.add("otherMessage");
+            }
+            switch (entry.getKind()) {
+                case WARNING, INFO -> {
+                    messageContent.getChildren().setAll(messageText);
+                    message.getChildren().setAll(messageContent);
+                }
+                case SENT, FAILED -> {
+                    // Add empty space first (left), then the message (right)
+                    messageContent.getChildren().setAll(messageText);
+                    message.getChildren().setAll(spacer, messageContent);
+                }
+                case RECEIVED -> {
+                    if (msg.isPrivate()) {
+                        messageSender.setText("Private from " + msg.getSender() + ":");
+                        messageSender.getStyleClass().setAll("label", "sender", "private");
+                    } else {
+                        messageSender.setText(msg.getSender() + ":");
+                        messageSender.getStyleClass().setAll("label", "sender");
+                    }
+                    // Add message first (left), then empty space (right)
+                    messageContent.getChildren().setAll(messageSender, messageText);
+                    message.getChildren().setAll(messageContent, spacer);
                 }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
             }
+            setGraphic(message);
         }
-        textOutput.getChildren().add(message);
     }
 
     /**
@@ -227,18 +634,33 @@ public class GUIController implements ChatListener {
         connectBtn.setText("Connecting...");
         connectBtn.setDisable(true);
 
-        // Run the connection in a new background thread to avoid GUI freeze
-        Thread connThread = new Thread(() -> {
-            boolean connected = tcpClient.connect(host, Integer.parseInt(port));
+        int portNumber;
+        try {
+            portNumber = Integer.parseInt(port.trim());
+        } catch (NumberFormatException e) {
+            serverStatus.setText("Invalid port: " + port);
+            connectBtn.setText("Connect");
+            connectBtn.setDisable(false);
+            return;
+        }
+        title.set(host + ":" + portNumber);
+        // The session connects in the background to avoid GUI freeze, and starts listening when connected. Messages
+        // are logged from the start.
+        CompletableFuture<MessageLog> logging = openMessageLog(host, portNumber).exceptionally(e -> null);
+        logging.thenCompose(log -> session.connect(host, portNumber)).thenAccept(connected -> {
             if (connected) {
-                // Connection established, start listening processes
-                tcpClient.addListener(this);
-                tcpClient.startListenThread();
+                if (BINARY_FRAMING) {
+                    tcpClient.enableBinaryFraming().whenComplete((on, e) -> LOGGER.info(session.getName()
+                            + (Boolean.TRUE.equals(on) ? ": binary framing on" : ": binary framing not available")));
+                }
+                if (COMPRESS) {
+                    tcpClient.enableCompression().whenComplete((on, e) -> LOGGER.info(session.getName()
+                            + (Boolean.TRUE.equals(on) ? ": compression on" : ": compression not available")));
+                }
                 startUserPolling();
             }
             updateButtons(connected);
         });
-        connThread.start();
     }
 
     /**
@@ -259,7 +681,7 @@ public class GUIController implements ChatListener {
             connBtnText = "Connect";
         }
         // Make sure this will be executed on GUI thread
-        Platform.runLater(() -> {
+        uiUpdates.submit(() -> {
             // Update button texts
             serverStatus.setText(status);
             connectBtn.setText(connBtnText);
@@ -282,39 +704,30 @@ public class GUIController implements ChatListener {
     ///////////////////////////////////////////////////////////////////////
 
     /**
-     * Start a new thread that will poll the server for currently active users
+     * Subscribe to user presence events, or poll the server for currently active users if the server does not
+     * support them
      */
     private void startUserPolling() {
-        // Make sure we have just one polling thread, not duplicates
-        if (userPollThread == null) {
-
-            userPollThread = new Thread(() -> {
-                ////////////////////////////////////////////////////////////////
-                // This block of code will run in the polling thread
-                ////////////////////////////////////////////////////////////////
-                long threadId = Thread.currentThread().getId();
-                System.out.println("Started user polling in Thread "
-                        + threadId);
-                while (tcpClient.isConnectionActive()) {
-                    // TcpClient will ask server to send the latest user list. The response from the server will
-                    // not be handled here! Here we only ask for update and go to sleep. Then repeat.
-                    tcpClient.refreshUserList();
-                    try {
-                        sleep(3000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                System.out.println("User polling thread " + threadId + " exiting...");
-                // Make sure we start the thread again next time
-                userPollThread = null;
-                ////////////////////////////////////////////////////////////////
-                // EOF polling thread code
-                ////////////////////////////////////////////////////////////////
-            });
-
-            userPollThread.start();
+        // Make sure we poll just once, not in duplicate
+        if (!userPolling.compareAndSet(false, true)) {
+            return;
         }
+        tcpClient.enablePresence().thenCompose(pushed -> {
+            if (pushed) {
+                LOGGER.info(session.getName() + ": server pushes user presence, no polling needed");
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            LOGGER.info(session.getName() + ": started user polling");
+            // The responses from the server will not be handled here, but in the listener methods
+            return new UserListPoller(tcpClient, MIN_POLL_INTERVAL, MAX_POLL_INTERVAL)
+                    .schedule(session.getDispatchPool());
+        }).whenComplete((ignored, e) -> {
+            if (e != null) {
+                LOGGER.log(Level.WARNING, "Could not set up user presence", e);
+            }
+            // Make sure polling starts again next time
+            userPolling.set(false);
+        });
     }
 
     /**
@@ -328,8 +741,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
-        // Update the GUI. Do it on the GUI thread with Platform.runLater()
-        Platform.runLater(() -> {
+        // Update the GUI. Do it on the GUI thread, in the next frame
+        uiUpdates.submit(() -> {
             if (success) {
                 serverStatus.setText("Server - login successful");
             } else {
@@ -347,7 +760,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageReceived(TextMessage message) {
         // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        uiUpdates.submit(() -> addMsgToGui(false, message, false));
     }
 
     /**
@@ -359,7 +772,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageError(String errMsg) {
         // Show error message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(true, new TextMessage("err", false,
+        uiUpdates.submit(() -> addMsgToGui(true, new TextMessage("err", false,
                 "Error: " + errMsg), true));
     }
 
@@ -372,20 +785,82 @@ public class GUIController implements ChatListener {
     @Override
     public void onUserList(String[] usernames) {
         // Update the user list. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
+        uiUpdates.submit(() -> reconcileUsers(usernames));
+    }
+
+    /**
+     * This method is called when a user comes online
+     *
+     * @param username The user
+     */
+    @Override
+    public void onUserJoined(String username) {
+        uiUpdates.submit(() -> {
+            if (shownUsers.add(username)) {
+                userList.getItems().add(username);
+            }
+        });
+    }
+
+    /**
+     * This method is called when a user goes offline
+     *
+     * @param username The user
+     */
+    @Override
+    public void onUserLeft(String username) {
+        uiUpdates.submit(() -> {
+            if (shownUsers.remove(username)) {
+                userList.getItems().remove(username);
+            }
+        });
+    }
+
+    /**
+     * Make the user list show the given users. Only the users that left are removed and only the new ones added,
+     * each in one batch, so the list changes (and is laid out again) only when the users really changed.
+     *
+     * @param usernames The users online now
+     */
+    private void reconcileUsers(String[] usernames) {
+        Set<String> online = new HashSet<>(List.of(usernames));
+        if (online.equals(shownUsers)) {
+            return;
+        }
+        if (shownUsers.retainAll(online)) {
+            userList.getItems().removeIf(user -> !online.contains(user));
+        }
+        List<String> added = new ArrayList<>();
+        for (String user : usernames) {
+            if (shownUsers.add(user)) {
+                added.add(user);
+            }
+        }
+        userList.getItems().addAll(added);
+    }
+
+    /**
+     * A row of the user list. The list view only creates rows for the visible users and reuses them while
+     * scrolling. Clicking a row starts a private message to the user.
+     */
+    private class UserCell extends ListCell<String> {
+        UserCell() {
+            getStyleClass().add("user");
+            setOnMouseClicked(event -> {
+                String user = getItem();
+                if (user != null) {
                     textInput.setText("/privmsg " + user + " ");
                     textInput.requestFocus();
                     textInput.end();
-                });
-                userList.getChildren().add(text);
-            }
-        });
+                }
+            });
+        }
+
+        @Override
+        protected void updateItem(String user, boolean empty) {
+            super.updateItem(user, empty);
+            setText(empty ? null : user);
+        }
     }
 
     /**
@@ -397,7 +872,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onSupportedCommands(String[] commands) {
         // Show the commands in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        uiUpdates.submit(() -> {
             StringBuilder listOfCommands = new StringBuilder(
                     "Commands available: ");
             for (String c : commands) {
@@ -418,7 +893,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onCommandError(String errMsg) {
         // Shoe error message. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        uiUpdates.submit(() -> {
             TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
             addMsgToGui(true, msg, true);
         });
@@ -430,7 +905,7 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onDisconnect() {
-        System.out.println("Socket closed by the remote end");
+        LOGGER.info("Socket closed by the remote end");
         updateButtons(false);
     }
 }
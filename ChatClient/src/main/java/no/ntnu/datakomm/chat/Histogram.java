@@ -0,0 +1,167 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with log-linear buckets, in the style of HdrHistogram: every power of two is split into 16 buckets,
+ * so a reported value is within about 6% of the real one. Recording is lock-free and allocation-free, so it can be
+ * done on the I/O threads for every line.
+ */
+public class Histogram {
+    // Buckets per power of two (must be a power of two itself)
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Record one value.
+     *
+     * @param value The value. Negative values count as 0.
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(Math.max(0, value)));
+    }
+
+    /**
+     * @return A copy of the values recorded so far
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket + 1 < BUCKET_COUNT ? lowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * The values of a histogram at one moment. Immutable. The getters make it readable through JMX.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            total = sum;
+        }
+
+        /**
+         * Get the values recorded after an earlier snapshot of the same histogram was taken.
+         *
+         * @param earlier The earlier snapshot
+         * @return The difference
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(difference);
+        }
+
+        /**
+         * @return Number of values recorded
+         */
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * Find the value below which the given share of the recorded values lie.
+         *
+         * @param percentile The percentile, between 0 and 100, for example 99.9
+         * @return The value (the upper end of its bucket), 0 when nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKET_COUNT - 1);
+        }
+
+        /**
+         * @return The median
+         */
+        public long getMedian() {
+            return getPercentile(50);
+        }
+
+        /**
+         * @return The 99th percentile
+         */
+        public long getP99() {
+            return getPercentile(99);
+        }
+
+        /**
+         * @return The 99.9th percentile
+         */
+        public long getP999() {
+            return getPercentile(99.9);
+        }
+
+        /**
+         * @return The largest recorded value (the upper end of its bucket), 0 when empty
+         */
+        public long getMax() {
+            for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The mean, using the lower end of every bucket
+         */
+        public double getMean() {
+            double sum = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                sum += (double) counts[i] * lowerBound(i);
+            }
+            return total > 0 ? sum / total : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + total + " median=" + getMedian() + " p99=" + getP99() + " max=" + getMax();
+        }
+    }
+}
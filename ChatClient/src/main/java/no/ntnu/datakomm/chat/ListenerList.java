@@ -0,0 +1,82 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The listeners of a TCPClient. The list is kept as an immutable array that is replaced on every change, so
+ * listeners can be added and removed from any thread while another thread notifies them. Notifying is a plain loop
+ * over the current array: no lock and no iterator.
+ */
+class ListenerList {
+    private static final ChatListener[] EMPTY = new ChatListener[0];
+
+    private final AtomicReference<ChatListener[]> listeners = new AtomicReference<>(EMPTY);
+
+    /**
+     * Add a listener, unless it is already in the list.
+     *
+     * @param listener The listener to add
+     * @return true if the listener was added
+     */
+    boolean add(ChatListener listener) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            if (indexOf(current, listener) >= 0) {
+                return false;
+            }
+            ChatListener[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener The listener to remove
+     * @return true if the listener was in the list
+     */
+    boolean remove(ChatListener listener) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+            ChatListener[] updated = current.length == 1 ? EMPTY : new ChatListener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the listeners registered right now. The array must not be modified.
+     *
+     * @return The current listeners
+     */
+    ChatListener[] snapshot() {
+        return listeners.get();
+    }
+
+    /**
+     * @return true if no listener is registered
+     */
+    boolean isEmpty() {
+        return listeners.get().length == 0;
+    }
+
+    private static int indexOf(ChatListener[] array, ChatListener listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
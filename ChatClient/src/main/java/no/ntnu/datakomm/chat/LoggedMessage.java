@@ -0,0 +1,26 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A message read back from the message log, with the time it was received.
+ */
+public class LoggedMessage {
+    private final long timestamp;
+    private final TextMessage message;
+
+    /**
+     * @param timestamp When the message was received, in milliseconds since the epoch
+     * @param message   The message
+     */
+    public LoggedMessage(long timestamp, TextMessage message) {
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public TextMessage getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,32 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Represents the server's answer to a login request
+ */
+public class LoginResult {
+
+    private final boolean success;
+    private final String errorMessage;
+
+    /**
+     * @param success      When true, the client has logged in
+     * @param errorMessage Error message from the server in case of failure, "" on success
+     */
+    public LoginResult(boolean success, String errorMessage) {
+        this.success = success;
+        this.errorMessage = errorMessage;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        return success ? "loginok" : "loginerr " + errorMessage;
+    }
+}
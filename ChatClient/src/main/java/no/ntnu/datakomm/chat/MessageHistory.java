@@ -0,0 +1,324 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the chat history shown in a list bounded in memory. When the list grows past the cap, its oldest entries
+ * are written to a page file on disk in pages, and removed from the list. The pages are loaded back on request,
+ * newest first, when the user scrolls up to them. While older pages are loaded the front of the list is not paged
+ * out, so the view does not change under the user. New entries are held back instead once the list is full, and
+ * written to disk a page at a time. releaseOlder() drops the loaded pages again and shows the held back entries,
+ * typically when the user is back at the bottom.
+ * <p>
+ * Not thread-safe: use it from one thread, for the GUI that is the FX application thread.
+ */
+public class MessageHistory implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MessageHistory.class.getName());
+
+    private final List<ChatEntry> items;
+    private final int memoryCap;
+    private final int pageSize;
+    private final Path file;
+    private final FileChannel channel;
+
+    // The pages paged out from the front of the list, oldest page first
+    private final PageIndex pages = new PageIndex();
+    private long pagedOutCount = 0;
+    private long fileEnd = 0;
+
+    // Pages loaded back into the front of the list, and the number of entries in them
+    private int loadedPages = 0;
+    private int loadedEntries = 0;
+
+    // Entries that arrived while older pages were loaded and the list was full: pages on disk, oldest page first,
+    // followed by the entries that do not fill a page yet
+    private final PageIndex newerPages = new PageIndex();
+    private final List<ChatEntry> newerEntries = new ArrayList<>();
+
+    /**
+     * Create a history that pages out to a temporary file, deleted on close.
+     *
+     * @param items     The list that holds the entries in memory, for example the items of a ListView
+     * @param memoryCap How many entries to keep in memory at least, before the oldest are paged out
+     * @param pageSize  How many entries are paged out and loaded back at a time
+     * @throws IOException When the page file can not be created
+     */
+    public MessageHistory(List<ChatEntry> items, int memoryCap, int pageSize) throws IOException {
+        this(items, memoryCap, pageSize, Files.createTempFile("chat-history", ".pages"));
+    }
+
+    /**
+     * @param items     The list that holds the entries in memory
+     * @param memoryCap How many entries to keep in memory at least, before the oldest are paged out
+     * @param pageSize  How many entries are paged out and loaded back at a time
+     * @param file      The page file. Existing content is overwritten, and the file is deleted on close.
+     * @throws IOException When the page file can not be opened
+     */
+    public MessageHistory(List<ChatEntry> items, int memoryCap, int pageSize, Path file) throws IOException {
+        if (memoryCap < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("Memory cap and page size must be positive");
+        }
+        this.items = items;
+        this.memoryCap = memoryCap;
+        this.pageSize = pageSize;
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Add an entry at the end of the list. The oldest entries are paged out if the list is too long. While older
+     * pages are loaded and the list is full, the entry is held back until releaseOlder() instead.
+     *
+     * @param entry The entry
+     */
+    public void add(ChatEntry entry) {
+        if (hasNewer() || (loadedPages > 0 && items.size() - loadedEntries >= memoryCap + pageSize)) {
+            holdBack(entry);
+        } else {
+            items.add(entry);
+            pageOutIfNeeded();
+        }
+    }
+
+    /**
+     * Insert entries in the list, for example ones read back from a message log. They go after the pages loaded
+     * with loadOlder(), if the index is among those. The oldest entries are paged out if the list is too long.
+     *
+     * @param index   Where in the list to insert the entries
+     * @param entries The entries, oldest first
+     */
+    public void insert(int index, List<ChatEntry> entries) {
+        items.addAll(Math.max(index, loadedEntries), entries);
+        pageOutIfNeeded();
+    }
+
+    /**
+     * @return true if older entries are on disk and not loaded
+     */
+    public boolean hasOlder() {
+        return loadedPages < pages.size();
+    }
+
+    /**
+     * @return true if newer entries are held back until releaseOlder()
+     */
+    public boolean hasNewer() {
+        return newerPages.size() > 0 || !newerEntries.isEmpty();
+    }
+
+    /**
+     * @return Number of entries paged out to disk from the front of the list
+     */
+    public long getPagedOutCount() {
+        return pagedOutCount;
+    }
+
+    /**
+     * Load the newest page that is on disk but not in the list, and insert it at the front of the list.
+     *
+     * @return Number of entries inserted, 0 if there are no older entries
+     * @throws IOException When the page can not be read
+     */
+    public int loadOlder() throws IOException {
+        if (!hasOlder()) {
+            return 0;
+        }
+        int page = pages.size() - 1 - loadedPages;
+        List<ChatEntry> entries = readPage(pages.start(page), pages.end(page));
+        items.addAll(0, entries);
+        loadedPages++;
+        loadedEntries += entries.size();
+        return entries.size();
+    }
+
+    /**
+     * Remove the pages loaded with loadOlder() from the list again, they stay on disk. The entries held back while
+     * they were loaded are added at the end of the list.
+     */
+    public void releaseOlder() {
+        if (loadedPages > 0) {
+            items.subList(0, loadedEntries).clear();
+            loadedPages = 0;
+            loadedEntries = 0;
+            pageOutIfNeeded();
+        }
+        if (hasNewer()) {
+            PageIndex held = newerPages.copy();
+            List<ChatEntry> rest = new ArrayList<>(newerEntries);
+            newerPages.clear();
+            newerEntries.clear();
+            // Added one page at a time, so that the oldest of them are paged out again as usual
+            for (int i = 0; i < held.size(); i++) {
+                try {
+                    for (ChatEntry entry : readPage(held.start(i), held.end(i))) {
+                        add(entry);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not read back newer messages from the page file", e);
+                }
+            }
+            for (ChatEntry entry : rest) {
+                add(entry);
+            }
+        }
+    }
+
+    /**
+     * Close and delete the page file.
+     *
+     * @throws IOException When the file can not be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Move the oldest entries to disk, a page at a time, while the list holds more than the cap plus one page.
+     */
+    private void pageOutIfNeeded() {
+        while (loadedPages == 0 && items.size() >= memoryCap + pageSize) {
+            List<ChatEntry> oldest = items.subList(0, pageSize);
+            try {
+                writePage(oldest, pages);
+                pagedOutCount += pageSize;
+            } catch (IOException e) {
+                // The entries are dropped instead, memory must stay bounded
+                LOGGER.log(Level.WARNING, "Could not page out older messages, they are dropped", e);
+            }
+            oldest.clear();
+        }
+    }
+
+    /**
+     * Hold back an entry that arrived while older pages are loaded, and write the held back entries to disk when
+     * they fill a page.
+     */
+    private void holdBack(ChatEntry entry) {
+        newerEntries.add(entry);
+        if (newerEntries.size() >= pageSize) {
+            try {
+                writePage(newerEntries, newerPages);
+            } catch (IOException e) {
+                // The entries are dropped instead, memory must stay bounded
+                LOGGER.log(Level.WARNING, "Could not page out newer messages, they are dropped", e);
+            }
+            newerEntries.clear();
+        }
+    }
+
+    private void writePage(List<ChatEntry> page, PageIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(page.size());
+        for (ChatEntry entry : page) {
+            TextMessage message = entry.getMessage();
+            out.writeByte(entry.getKind().ordinal());
+            out.writeBoolean(message.isPrivate());
+            writeString(out, message.getSender());
+            writeString(out, message.getText());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        long offset = fileEnd;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        index.add(fileEnd, offset);
+        fileEnd = offset;
+    }
+
+    private List<ChatEntry> readPage(long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Page file is truncated");
+            }
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+        int count = in.readInt();
+        List<ChatEntry> entries = new ArrayList<>(count);
+        ChatEntry.Kind[] kinds = ChatEntry.Kind.values();
+        for (int i = 0; i < count; i++) {
+            ChatEntry.Kind kind = kinds[in.readUnsignedByte()];
+            boolean priv = in.readBoolean();
+            String sender = readString(in);
+            String text = readString(in);
+            entries.add(new ChatEntry(kind, new TextMessage(sender, priv, text)));
+        }
+        return entries;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Where pages start and end in the page file. The pages of one index are not next to each other in the file
+     * when pages of another index were written in between.
+     */
+    private static class PageIndex {
+        private long[] starts = new long[16];
+        private long[] ends = new long[16];
+        private int size = 0;
+
+        void add(long start, long end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long start(int page) {
+            return starts[page];
+        }
+
+        long end(int page) {
+            return ends[page];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        PageIndex copy() {
+            PageIndex copy = new PageIndex();
+            copy.starts = Arrays.copyOf(starts, Math.max(size, 1));
+            copy.ends = Arrays.copyOf(ends, Math.max(size, 1));
+            copy.size = size;
+            return copy;
+        }
+    }
+}
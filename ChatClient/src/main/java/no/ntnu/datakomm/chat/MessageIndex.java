@@ -0,0 +1,274 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A full-text index over the newest received messages. Register it as a listener on the TCPClient and it indexes
+ * every message as it arrives. For every word (case-insensitive, split at anything that is not a letter or a digit)
+ * and for every sender it keeps a posting list of message numbers, in arrival order. A query intersects the posting
+ * lists, starting with the shortest, so it costs time in proportion to the rarest word, not to the number of
+ * messages.
+ * <p>
+ * The index holds at most a fixed number of messages. When it is full, the oldest message is removed from it, and
+ * from the front of its posting lists, so memory stays bounded however long the client runs.
+ * <p>
+ * Indexing and searching can happen on different threads.
+ */
+public class MessageIndex implements ChatListener {
+    // Default for the most messages indexed
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // The indexed messages in a ring: message number n is at n % capacity
+    private final TextMessage[] messages;
+    // Number of the oldest indexed message, and of the next one
+    private int first = 0;
+    private int next = 0;
+    private final Map<String, IntList> wordPostings = new HashMap<>();
+    private final Map<String, IntList> senderPostings = new HashMap<>();
+
+    /**
+     * Create an index of the default capacity.
+     */
+    public MessageIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The most messages indexed; the oldest are removed beyond that
+     */
+    public MessageIndex(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        messages = new TextMessage[capacity];
+    }
+
+    /**
+     * Index a received message.
+     *
+     * @param message The message
+     */
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        add(message);
+    }
+
+    /**
+     * Index a message, for example one read back from the message log. The oldest message is removed if the index
+     * is full.
+     *
+     * @param message The message
+     */
+    public void add(TextMessage message) {
+        List<String> words = tokenize(message.getText());
+        lock.writeLock().lock();
+        try {
+            if (next - first == messages.length) {
+                removeOldest();
+            }
+            int id = next++;
+            messages[id % messages.length] = message;
+            for (String word : words) {
+                IntList postings = wordPostings.computeIfAbsent(word, w -> new IntList());
+                // A word repeated in one message is listed once
+                if (postings.size() == 0 || postings.last() != id) {
+                    postings.add(id);
+                }
+            }
+            senderPostings.computeIfAbsent(message.getSender(), s -> new IntList()).add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of messages indexed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return next - first;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the oldest message. Its number is the first in each of its posting lists, as it is the oldest.
+     */
+    private void removeOldest() {
+        int id = first++;
+        TextMessage message = messages[id % messages.length];
+        messages[id % messages.length] = null;
+        for (String word : tokenize(message.getText())) {
+            removeFirst(wordPostings, word, id);
+        }
+        removeFirst(senderPostings, message.getSender(), id);
+    }
+
+    private static void removeFirst(Map<String, IntList> postings, String key, int id) {
+        IntList list = postings.get(key);
+        if (list != null && list.size() > 0 && list.first() == id) {
+            list.removeFirst();
+            if (list.size() == 0) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Find the messages that contain all the given words.
+     *
+     * @param words       The words to look for, separated by spaces. Empty to match every message.
+     * @param sender      Only messages from this sender, or null for all senders
+     * @param privateOnly true for private messages only, false for public messages only, null for both
+     * @param limit       The most results to return
+     * @return The matching messages, newest first
+     */
+    public List<TextMessage> search(String words, String sender, Boolean privateOnly, int limit) {
+        List<String> queryWords = tokenize(words);
+        lock.readLock().lock();
+        try {
+            List<IntList> lists = new ArrayList<>();
+            for (String word : queryWords) {
+                IntList postings = wordPostings.get(word);
+                if (postings == null) {
+                    return List.of();
+                }
+                lists.add(postings);
+            }
+            if (sender != null) {
+                IntList postings = senderPostings.get(sender);
+                if (postings == null) {
+                    return List.of();
+                }
+                lists.add(postings);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+            List<TextMessage> results = new ArrayList<>();
+            // Walk the shortest list from the newest message backwards, and look each one up in the others
+            int candidates = lists.isEmpty() ? next - first : lists.get(0).size();
+            for (int i = candidates - 1; i >= 0 && results.size() < limit; i--) {
+                int id = lists.isEmpty() ? first + i : lists.get(0).get(i);
+                TextMessage message = messages[id % messages.length];
+                if (privateOnly != null && message.isPrivate() != privateOnly) {
+                    continue;
+                }
+                boolean inAll = true;
+                for (int l = 1; l < lists.size() && inAll; l++) {
+                    inAll = lists.get(l).contains(id);
+                }
+                if (inAll) {
+                    results.add(message);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split a text into lower-case words, at every character that is not a letter or a digit.
+     *
+     * @param text The text
+     * @return The words, in order, with repetitions
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // The other events are not indexed
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    /**
+     * A growable list of ascending message numbers, added at the end and removed from the front.
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        // The list is values[start] up to values[end - 1]
+        int start = 0;
+        int end = 0;
+
+        void add(int value) {
+            if (end == values.length) {
+                // Reuse the room of removed values before growing
+                int size = size();
+                int[] grown = size * 2 <= values.length ? values : new int[values.length * 2];
+                System.arraycopy(values, start, grown, 0, size);
+                values = grown;
+                start = 0;
+                end = size;
+            }
+            values[end++] = value;
+        }
+
+        void removeFirst() {
+            start++;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        int get(int i) {
+            return values[start + i];
+        }
+
+        int first() {
+            return values[start];
+        }
+
+        int last() {
+            return values[end - 1];
+        }
+
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, start, end, value) >= 0;
+        }
+    }
+}
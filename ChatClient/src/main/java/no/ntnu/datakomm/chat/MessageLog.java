@@ -0,0 +1,384 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the messages the client receives, stored in memory-mapped segment files. Register it as
+ * a listener on the TCPClient, or through a ChatEventBus that does not drop events, like a session's lossless
+ * listeners: every received message is appended as a plain memory copy, so logging is cheap. Read the log back with
+ * MessageLogReader.
+ * <p>
+ * Record format: length of the payload (int), CRC-32 of the payload (int), then the payload: timestamp in
+ * milliseconds (long), flags (byte, bit 0 = private), sender and text, each as a varint byte length and UTF-8
+ * bytes. The length is written last, and a length of 0 ends a segment. After a crash, a segment ends at the first
+ * record whose length or checksum does not match, and appending continues from there.
+ * <p>
+ * Only one MessageLog may append to a directory at a time, in this process or any other: it holds a lock on a
+ * lock file in the directory until it is closed.
+ */
+public class MessageLog implements ChatListener, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MessageLog.class.getName());
+
+    // Default size of a segment file
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final int HEADER_SIZE = 8;
+    private static final byte FLAG_PRIVATE = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "writer.lock";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FileLock lock;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer payload = ByteBuffer.allocate(256);
+
+    // The segment appended to, and its number
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private boolean closed = false;
+
+    /**
+     * Open the log in a directory, with segments of the default size.
+     *
+     * @param directory The directory of the segment files. Created if it does not exist.
+     * @throws IOException When the directory or the segment can not be opened
+     */
+    public MessageLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the log in a directory. Appending continues after the last valid record of the newest segment.
+     *
+     * @param directory   The directory of the segment files. Created if it does not exist.
+     * @param segmentSize Size of a segment file. A new segment is started when a record does not fit.
+     * @throws IOException When the directory or the segment can not be opened, or another log appends to the
+     *                     directory
+     */
+    public MessageLog(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, lockDirectory(directory));
+    }
+
+    private MessageLog(Path directory, int segmentSize, FileLock lock) throws IOException {
+        if (lock == null) {
+            throw new IOException("Another message log appends to " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lock = lock;
+        try {
+            List<Path> segments = listSegments(directory);
+            if (segments.isEmpty()) {
+                openSegment(1, segmentSize);
+            } else {
+                Path last = segments.get(segments.size() - 1);
+                segmentNumber = segmentNumber(last);
+                segment = map(last, Files.size(last));
+                recover(segment);
+            }
+        } catch (IOException e) {
+            lock.channel().close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the log in a directory, with segments of the default size, unless another log appends to it.
+     *
+     * @param directory The directory of the segment files. Created if it does not exist.
+     * @return The log, or null if another log, in this process or another one, appends to the directory
+     * @throws IOException When the directory or the segment can not be opened
+     */
+    public static MessageLog tryOpen(Path directory) throws IOException {
+        FileLock lock = lockDirectory(directory);
+        return lock != null ? new MessageLog(directory, DEFAULT_SEGMENT_SIZE, lock) : null;
+    }
+
+    /**
+     * Create the directory if needed and take the lock that makes a log its only writer.
+     *
+     * @return The lock, or null if another log holds it
+     */
+    private static FileLock lockDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by a log in this process
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Append a received message to the log.
+     *
+     * @param message The message
+     */
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        try {
+            append(System.currentTimeMillis(), message);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not append a message to the log", e);
+        }
+    }
+
+    // The other events are not logged
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    /**
+     * Append a message to the log.
+     *
+     * @param timestamp When the message was received, in milliseconds since the epoch
+     * @param message   The message
+     * @throws IOException When a new segment is needed and can not be created
+     */
+    public synchronized void append(long timestamp, TextMessage message) throws IOException {
+        if (closed) {
+            throw new IOException("Message log is closed");
+        }
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 5 + sender.length + 5 + text.length;
+        if (payload.capacity() < length) {
+            payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+        }
+        payload.clear();
+        payload.putLong(timestamp);
+        payload.put(message.isPrivate() ? FLAG_PRIVATE : 0);
+        putVarint(payload, sender.length);
+        payload.put(sender);
+        putVarint(payload, text.length);
+        payload.put(text);
+        payload.flip();
+        crc.reset();
+        crc.update(payload.array(), 0, payload.limit());
+
+        int recordSize = HEADER_SIZE + payload.limit();
+        if (segment.remaining() < recordSize) {
+            openSegment(segmentNumber + 1, Math.max(segmentSize, recordSize + HEADER_SIZE));
+        }
+        int start = segment.position();
+        // Payload and checksum first, the length last: a record is only valid once it is complete
+        segment.position(start + HEADER_SIZE);
+        segment.put(payload);
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, payload.limit());
+    }
+
+    /**
+     * Write the appended records to disk. Without this, they survive a crash of the application, but not of the
+     * operating system.
+     */
+    public synchronized void force() {
+        segment.force();
+    }
+
+    /**
+     * Force the records to disk, stop appending and let another log append to the directory.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            segment.force();
+            closed = true;
+            try {
+                // Closing the channel releases the lock
+                lock.channel().close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not release the lock of the message log", e);
+            }
+        }
+    }
+
+    /**
+     * @return The directory of the segment files
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get a reader of the records appended so far. Records appended later are not read by it, so a client can
+     * replay the log while it logs new messages, without getting those twice.
+     *
+     * @return The reader
+     */
+    public synchronized MessageLogReader reader() {
+        return new MessageLogReader(directory, segmentNumber, segment.position());
+    }
+
+    /**
+     * @return Where the next record will be written in the current segment
+     */
+    synchronized int getPosition() {
+        return segment.position();
+    }
+
+    /**
+     * Move the buffer's position past the last valid record, and clear the header of whatever follows, so a torn
+     * record from a crash is overwritten by the next append.
+     */
+    private static void recover(ByteBuffer buffer) {
+        buffer.position(0);
+        while (readRecord(buffer) != null) {
+            // Skip valid records
+        }
+        if (buffer.remaining() >= HEADER_SIZE) {
+            buffer.putLong(buffer.position(), 0);
+        }
+    }
+
+    private void openSegment(long number, int size) throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        segmentNumber = number;
+        segment = map(directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)), size);
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @param directory A log directory
+     * @return The segment files in it, oldest first
+     * @throws IOException When the directory can not be listed
+     */
+    static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(MessageLog::isSegment).sorted().forEach(segments::add);
+            }
+        }
+        return segments;
+    }
+
+    private static boolean isSegment(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Read the record at the buffer's position. On success the position moves past it, otherwise it stays.
+     *
+     * @param buffer A segment
+     * @return The message, or null at the end of the segment or at a damaged record
+     */
+    static LoggedMessage readRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        if (length <= 0 || length > buffer.remaining() - HEADER_SIZE) {
+            return null;
+        }
+        int checksum = buffer.getInt(start + 4);
+        ByteBuffer record = buffer.duplicate();
+        record.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+        CRC32 recordCrc = new CRC32();
+        recordCrc.update(record.duplicate());
+        if ((int) recordCrc.getValue() != checksum) {
+            return null;
+        }
+        try {
+            long timestamp = record.getLong();
+            boolean priv = (record.get() & FLAG_PRIVATE) != 0;
+            String sender = getString(record);
+            String text = getString(record);
+            buffer.position(start + HEADER_SIZE + length);
+            return new LoggedMessage(timestamp, new TextMessage(sender, priv, text));
+        } catch (RuntimeException e) {
+            // The checksum matched, but the content does not: treat it as damaged
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[getVarint(record)];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Varint too long");
+    }
+}
@@ -0,0 +1,68 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Reads a message log written by MessageLog, oldest message first. The segments are memory-mapped and the
+ * binary records decoded directly, so replaying even a large log at startup is fast. Each segment is read up to its
+ * last valid record.
+ */
+public class MessageLogReader {
+    private final Path directory;
+    // The last segment read and where reading it stops, or Long.MAX_VALUE and Integer.MAX_VALUE to read everything
+    private final long lastSegment;
+    private final int lastPosition;
+
+    /**
+     * @param directory The directory of the log's segment files
+     */
+    public MessageLogReader(Path directory) {
+        this(directory, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a reader that stops at a given record, see MessageLog.reader().
+     *
+     * @param directory    The directory of the log's segment files
+     * @param lastSegment  Number of the last segment read
+     * @param lastPosition Where reading the last segment stops
+     */
+    MessageLogReader(Path directory, long lastSegment, int lastPosition) {
+        this.directory = directory;
+        this.lastSegment = lastSegment;
+        this.lastPosition = lastPosition;
+    }
+
+    /**
+     * Hand every message in the log to a consumer, in the order they were appended.
+     *
+     * @param consumer Receives the messages
+     * @return Number of messages read
+     * @throws IOException When a segment can not be read
+     */
+    public long replay(Consumer<LoggedMessage> consumer) throws IOException {
+        long count = 0;
+        for (Path file : MessageLog.listSegments(directory)) {
+            long number = MessageLog.segmentNumber(file);
+            if (number > lastSegment) {
+                break;
+            }
+            MappedByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = number == lastSegment ? Math.min(channel.size(), lastPosition) : channel.size();
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            LoggedMessage message;
+            while ((message = MessageLog.readRecord(segment)) != null) {
+                consumer.accept(message);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,155 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The metrics of a TCPClient at one moment, or the difference between two moments. Immutable. All times are
+ * nanoseconds.
+ */
+public class MetricsSnapshot implements ClientMetricsMXBean {
+    private final long timestamp;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long linesIn;
+    private final long linesOut;
+    private final Map<String, Long> commandsIn;
+    private final Map<String, Long> commandsOut;
+    private final Histogram.Snapshot parseTime;
+    private final Map<String, Histogram.Snapshot> dispatchTime;
+    private final int outboundQueueDepth;
+    private final Histogram.Snapshot outboundQueueDepthOnSend;
+    private final Map<String, Histogram.Snapshot> responseTime;
+
+    /**
+     * Take a snapshot of live metrics.
+     *
+     * @param metrics The metrics
+     */
+    MetricsSnapshot(ClientMetricsMXBean metrics) {
+        this(System.nanoTime(), metrics.getBytesIn(), metrics.getBytesOut(), metrics.getLinesIn(),
+                metrics.getLinesOut(), metrics.getCommandsIn(), metrics.getCommandsOut(), metrics.getParseTime(),
+                metrics.getDispatchTime(), metrics.getOutboundQueueDepth(), metrics.getOutboundQueueDepthOnSend(),
+                metrics.getResponseTime());
+    }
+
+    private MetricsSnapshot(long timestamp, long bytesIn, long bytesOut, long linesIn, long linesOut,
+                            Map<String, Long> commandsIn, Map<String, Long> commandsOut,
+                            Histogram.Snapshot parseTime, Map<String, Histogram.Snapshot> dispatchTime,
+                            int outboundQueueDepth, Histogram.Snapshot outboundQueueDepthOnSend,
+                            Map<String, Histogram.Snapshot> responseTime) {
+        this.timestamp = timestamp;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.linesIn = linesIn;
+        this.linesOut = linesOut;
+        this.commandsIn = Map.copyOf(commandsIn);
+        this.commandsOut = Map.copyOf(commandsOut);
+        this.parseTime = parseTime;
+        this.dispatchTime = Map.copyOf(dispatchTime);
+        this.outboundQueueDepth = outboundQueueDepth;
+        this.outboundQueueDepthOnSend = outboundQueueDepthOnSend;
+        this.responseTime = Map.copyOf(responseTime);
+    }
+
+    /**
+     * Get what happened between an earlier snapshot and this one. The queue depth is the one of this snapshot.
+     *
+     * @param earlier An earlier snapshot of the same client
+     * @return The difference
+     */
+    public MetricsSnapshot minus(MetricsSnapshot earlier) {
+        return new MetricsSnapshot(timestamp, bytesIn - earlier.bytesIn, bytesOut - earlier.bytesOut,
+                linesIn - earlier.linesIn, linesOut - earlier.linesOut,
+                minusCounts(commandsIn, earlier.commandsIn), minusCounts(commandsOut, earlier.commandsOut),
+                parseTime.minus(earlier.parseTime), minusHistograms(dispatchTime, earlier.dispatchTime),
+                outboundQueueDepth, outboundQueueDepthOnSend.minus(earlier.outboundQueueDepthOnSend),
+                minusHistograms(responseTime, earlier.responseTime));
+    }
+
+    private static Map<String, Long> minusCounts(Map<String, Long> later, Map<String, Long> earlier) {
+        Map<String, Long> difference = new HashMap<>();
+        later.forEach((key, count) -> difference.put(key, count - earlier.getOrDefault(key, 0L)));
+        return difference;
+    }
+
+    private static Map<String, Histogram.Snapshot> minusHistograms(Map<String, Histogram.Snapshot> later,
+                                                                   Map<String, Histogram.Snapshot> earlier) {
+        Map<String, Histogram.Snapshot> difference = new HashMap<>();
+        later.forEach((key, histogram) -> {
+            Histogram.Snapshot before = earlier.get(key);
+            difference.put(key, before != null ? histogram.minus(before) : histogram);
+        });
+        return difference;
+    }
+
+    /**
+     * @return When the snapshot was taken, in System.nanoTime() time
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public long getLinesIn() {
+        return linesIn;
+    }
+
+    @Override
+    public long getLinesOut() {
+        return linesOut;
+    }
+
+    @Override
+    public Map<String, Long> getCommandsIn() {
+        return commandsIn;
+    }
+
+    @Override
+    public Map<String, Long> getCommandsOut() {
+        return commandsOut;
+    }
+
+    @Override
+    public Histogram.Snapshot getParseTime() {
+        return parseTime;
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getDispatchTime() {
+        return dispatchTime;
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return outboundQueueDepth;
+    }
+
+    @Override
+    public Histogram.Snapshot getOutboundQueueDepthOnSend() {
+        return outboundQueueDepthOnSend;
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getResponseTime() {
+        return responseTime;
+    }
+
+    @Override
+    public String toString() {
+        return "in: " + bytesIn + " bytes, " + linesIn + " lines " + commandsIn
+                + "; out: " + bytesOut + " bytes, " + linesOut + " lines " + commandsOut
+                + "; queued: " + outboundQueueDepth
+                + "; parse ns: " + parseTime + "; dispatch ns: " + dispatchTime + "; response ns: " + responseTime;
+    }
+}
@@ -0,0 +1,90 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of names, such as the senders of messages, so that every message from the same user holds the
+ * same String instead of a copy of its own. A name is looked up by its raw bytes in the decoder's buffer, so no
+ * String is created when it is found. A few users send most of the messages, so most lookups are hits, and the
+ * names kept in long histories share one String each.
+ * <p>
+ * The table has a fixed number of slots, in pairs. A name goes into the pair its hash selects, replacing the older
+ * entry when both are taken, so the table never grows. Lookups take no lock: each slot holds an immutable entry,
+ * and a lost race only means a name is decoded once more.
+ */
+final class NameTable {
+    // Names longer than this are not kept, they are rarely repeated
+    static final int MAX_NAME_BYTES = 64;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    /**
+     * @param capacity Most names kept, rounded up to a power of two
+     */
+    NameTable(int capacity) {
+        int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Get the String for a name given as bytes, decoding it only if it is not in the table.
+     *
+     * @param bytes Buffer holding the name in UTF-8
+     * @param start Index of the first byte of the name
+     * @param end   Exclusive end of the name
+     * @return The name
+     */
+    String intern(byte[] bytes, int start, int end) {
+        if (end - start > MAX_NAME_BYTES) {
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+        int hash = CommandRegistry.hash(bytes, start, end);
+        int first = (hash ^ (hash >>> 16)) & mask & ~1;
+        Entry a = slots.get(first);
+        if (a != null && a.matches(bytes, start, end, hash)) {
+            return a.name;
+        }
+        Entry b = slots.get(first + 1);
+        if (b != null && b.matches(bytes, start, end, hash)) {
+            return b.name;
+        }
+        Entry added = new Entry(hash, Arrays.copyOfRange(bytes, start, end));
+        // The newest entry of a pair is in its first slot, the older one is dropped
+        slots.set(first + 1, a);
+        slots.set(first, added);
+        return added.name;
+    }
+
+    /**
+     * @return Number of names in the table
+     */
+    int size() {
+        int count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class Entry {
+        final int hash;
+        final byte[] bytes;
+        final String name;
+
+        Entry(int hash, byte[] bytes) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.name = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        boolean matches(byte[] other, int start, int end, int otherHash) {
+            return hash == otherHash && Arrays.equals(bytes, 0, bytes.length, other, start, end);
+        }
+    }
+}
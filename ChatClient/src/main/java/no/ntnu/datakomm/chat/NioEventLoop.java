@@ -0,0 +1,167 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single I/O thread with a Selector that drives any number of TCPClient sessions. Create one loop and pass it
+ * to the TCPClient constructor of every session that should share it. Those clients then use non-blocking
+ * SocketChannels and do not need a thread of their own.
+ */
+public class NioEventLoop implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(NioEventLoop.class.getName());
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Open the selector and start the I/O thread, a daemon platform thread.
+     *
+     * @throws IOException When the selector could not be opened
+     */
+    public NioEventLoop() throws IOException {
+        this(ThreadFactories.platformFactory("nio-event-loop-", true));
+    }
+
+    /**
+     * Open the selector and start the I/O thread.
+     *
+     * @param threadFactory Factory for the I/O thread
+     * @throws IOException When the selector could not be opened
+     */
+    public NioEventLoop(ThreadFactory threadFactory) throws IOException {
+        selector = Selector.open();
+        thread = threadFactory.newThread(this::run);
+        thread.start();
+    }
+
+    /**
+     * Run a task on the I/O thread. All selector and channel registration work must go through here.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Register a channel with the selector. Must be called on the I/O thread.
+     *
+     * @param channel   A non-blocking socket channel
+     * @param transport The transport that handles readiness events for the channel
+     * @return The selection key, with no interest ops set yet
+     * @throws ClosedChannelException When the channel was closed before the registration happened
+     */
+    SelectionKey register(SocketChannel channel, NioTransport transport) throws ClosedChannelException {
+        return channel.register(selector, 0, transport);
+    }
+
+    /**
+     * @return true while the I/O thread is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the I/O thread and close every channel registered with it.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * The I/O loop: wait for ready channels, run queued tasks and dispatch readiness events to the transports.
+     */
+    private void run() {
+        while (running) {
+            try {
+                // Tasks submitted by the I/O thread itself do not wake up the selector, so do not block for them
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Select failed", e);
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Run all tasks submitted with execute() since the last loop iteration.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Event loop task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Dispatch the readiness events of one key to its transport.
+     *
+     * @param key The selected key
+     */
+    private void processKey(SelectionKey key) {
+        NioTransport transport = (NioTransport) key.attachment();
+        try {
+            if (key.isReadable()) {
+                transport.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                transport.onWritable();
+            }
+        } catch (CancelledKeyException e) {
+            // The channel was closed by another thread, nothing more to do
+        } catch (IOException e) {
+            transport.onError(e);
+        } catch (RuntimeException e) {
+            // A failing handler or listener closes its own connection, not the loop shared with other connections
+            transport.onError(new IOException("Handling the server's data failed", e));
+        }
+    }
+
+    /**
+     * Close all channels still registered when the loop stops.
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((NioTransport) key.attachment()).onError(null);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close the selector", e);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking transport driven by a shared NioEventLoop. Reading and writing both happen on the loop's
+ * I/O thread, so a session costs no thread of its own.
+ */
+class NioTransport implements Transport {
+    private static final Logger LOGGER = Logger.getLogger(NioTransport.class.getName());
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final TCPClient client;
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final OutboundQueue outbound;
+    // True while a flush task is queued on the event loop, so a burst of sends wakes the loop only once
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+
+    // The fields below are only touched on the I/O thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final CommandDecoder decoder;
+    private SelectionKey key;
+    private boolean closed = false;
+
+    /**
+     * Connect to the server and register the channel with the event loop. The TCP handshake itself is done in
+     * blocking mode so that TCPClient.connect() can still report success or failure directly.
+     *
+     * @param client        The client that will receive incoming lines
+     * @param eventLoop     The loop that will drive this connection
+     * @param serverAddress Address of the chat server
+     * @throws IOException When the connection could not be established
+     */
+    NioTransport(TCPClient client, NioEventLoop eventLoop, InetSocketAddress serverAddress) throws IOException {
+        this.client = client;
+        outbound = new OutboundQueue(client.getMetrics());
+        this.eventLoop = eventLoop;
+        decoder = new CommandDecoder(client.getCommandRegistry(), client.getMetrics());
+        channel = SocketChannel.open(serverAddress);
+        channel.configureBlocking(false);
+        eventLoop.execute(this::register);
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String cmd) {
+        CompletableFuture<Void> written = outbound.add(cmd);
+        scheduleFlush();
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAndCompress(String cmd) {
+        CompletableFuture<Void> written = outbound.addAndCompress(cmd, WireCompression.newDeflater());
+        scheduleFlush();
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAndStartFraming(String cmd) {
+        CompletableFuture<Void> written = outbound.addAndStartFraming(cmd);
+        scheduleFlush();
+        return written;
+    }
+
+    @Override
+    public void startReading() {
+        eventLoop.execute(() -> setInterest(SelectionKey.OP_READ, true));
+    }
+
+    @Override
+    public int queuedCommands() {
+        return outbound.size();
+    }
+
+    @Override
+    public void close() {
+        // The I/O thread flushes what is already queued, then closes the socket
+        closing = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Make sure a flush runs on the I/O thread soon. Everything queued by then is written in one batch.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Write as much of the outbound queue as the socket accepts right away, and wait for a writable event for the
+     * rest. Runs on the I/O thread.
+     */
+    private void flush() {
+        try {
+            onWritable();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close the socket", e);
+        }
+    }
+
+    /**
+     * Register the channel with the selector. Runs on the I/O thread.
+     */
+    private void register() {
+        try {
+            key = eventLoop.register(channel, this);
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    /**
+     * Turn one interest operation on or off.
+     *
+     * @param op The SelectionKey operation
+     * @param on When true, enable it, when false, disable it
+     */
+    private void setInterest(int op, boolean on) {
+        if (key != null && key.isValid()) {
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | op : ops & ~op);
+        }
+    }
+
+    /**
+     * Called by the event loop when data can be read. Hands the bytes to the decoder.
+     *
+     * @throws IOException On socket errors
+     */
+    void onReadable() throws IOException {
+        int bytesRead = channel.read(readBuffer);
+        if (bytesRead < 0) {
+            onError(null);
+            return;
+        }
+        readBuffer.flip();
+        try {
+            decoder.decode(readBuffer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * Called by the event loop when the socket is writable. Writes queued commands in batches, as many as the
+     * socket accepts.
+     *
+     * @throws IOException On socket errors
+     */
+    void onWritable() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (outbound.flush(channel)) {
+            setInterest(SelectionKey.OP_WRITE, false);
+            if (closing) {
+                closed = true;
+                closeChannel();
+                outbound.failAll(new ClosedChannelException());
+            }
+        } else {
+            // Socket send buffer is full, continue on the next writable event
+            setInterest(SelectionKey.OP_WRITE, true);
+        }
+    }
+
+    /**
+     * Called when the connection fails or is closed by the server. The commands that were not written are handed
+     * back to the client, which may send them again after reconnecting.
+     *
+     * @param e The error, or null on a clean end of stream
+     */
+    void onError(IOException e) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (e != null && channel.isOpen()) {
+            LOGGER.log(Level.WARNING, "Connection to the server failed", e);
+        }
+        closeChannel();
+        client.handleConnectionLost(this, outbound.drainUnsent());
+    }
+}
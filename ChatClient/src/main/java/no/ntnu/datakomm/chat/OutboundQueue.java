@@ -0,0 +1,324 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Commands waiting to be written to the server. Any thread can add commands. One writing thread (the writer thread
+ * of a SocketTransport or the I/O thread of an NioEventLoop) drains them in batches and writes each batch with a
+ * single gathering write, so a burst of commands costs one system call instead of one per command.
+ * <p>
+ * After a command queued with addAndCompress(), every batch is compressed into one buffer and sync-flushed, so each
+ * batch costs one flush of the compressed stream.
+ * <p>
+ * After a command queued with addAndStartFraming(), every command is sent as a binary frame (see BinaryFraming).
+ * Before that, line breaks inside a command are sent as spaces, as they would end the line.
+ */
+class OutboundQueue {
+    // Most commands written with one gathering write
+    private static final int MAX_BATCH = 64;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    // Where the bytes and commands written are counted
+    private final ClientMetrics metrics;
+
+    // The batch being written. Reused for every flush and only touched by the writing thread.
+    private final PendingWrite[] batch = new PendingWrite[MAX_BATCH];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    // True when no more commands may join the batch: its compressed bytes are final, or it ends with the command
+    // after which compression starts
+    private boolean sealed = false;
+
+    // Compresses the commands after the switch, null while sending plain text. Only touched by the writing thread.
+    private Deflater deflater;
+    // The compressed bytes of the batch. They are written from the slot of its first command, the other slots of
+    // the batch hold empty buffers.
+    private byte[] compressed = new byte[1024];
+    private int compressedLength = 0;
+    private int compressedSlot = -1;
+
+    // True once commands are sent as binary frames. Only touched by the writing thread.
+    private boolean framed = false;
+
+    /**
+     * @param metrics Where to count the commands queued and the bytes and commands written
+     */
+    OutboundQueue(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queue a command for writing.
+     *
+     * @param cmd The command, without the trailing newline
+     * @return A future that completes when the command has been written to the socket
+     */
+    CompletableFuture<Void> add(String cmd) {
+        return add(new PendingWrite(cmd, new CompletableFuture<>()));
+    }
+
+    /**
+     * Queue a command, and compress every command queued after it.
+     *
+     * @param cmd      The command, without the trailing newline. It is sent uncompressed.
+     * @param deflater The compressor for the rest of the connection
+     * @return A future that completes when the command has been written to the socket
+     */
+    CompletableFuture<Void> addAndCompress(String cmd, Deflater deflater) {
+        return add(new PendingWrite(cmd, new CompletableFuture<>(), deflater, false));
+    }
+
+    /**
+     * Queue a command, and send every command queued after it as a binary frame.
+     *
+     * @param cmd The command, without the trailing newline. It is sent as a line.
+     * @return A future that completes when the command has been written to the socket
+     */
+    CompletableFuture<Void> addAndStartFraming(String cmd) {
+        return add(new PendingWrite(cmd, new CompletableFuture<>(), null, true));
+    }
+
+    private CompletableFuture<Void> add(PendingWrite write) {
+        metrics.commandQueued(write.command, queue.size());
+        queue.add(write);
+        return write.future;
+    }
+
+    /**
+     * Wake up a writing thread blocked in awaitData(), without queueing any data.
+     */
+    void wakeUp() {
+        queue.add(new PendingWrite("", null));
+    }
+
+    /**
+     * Block until at least one command is queued. Only for a blocking writing thread.
+     *
+     * @throws InterruptedException When the thread is interrupted while waiting
+     */
+    void awaitData() throws InterruptedException {
+        if (batchStart == batchEnd) {
+            PendingWrite first = queue.take();
+            resetBatch();
+            appendToBatch(first);
+        }
+    }
+
+    /**
+     * Write queued commands until the queue is empty or the channel does not accept more bytes.
+     *
+     * @param channel The channel to write to
+     * @return True when everything queued has been written, false when the channel is full (non-blocking mode)
+     * @throws IOException On socket errors. The commands of the failed batch stay queued until failAll() is called.
+     */
+    boolean flush(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            if (batchStart == batchEnd) {
+                resetBatch();
+            }
+            PendingWrite write;
+            while (!sealed && batchEnd < MAX_BATCH && (write = queue.poll()) != null) {
+                appendToBatch(write);
+            }
+            if (batchStart == batchEnd) {
+                return true;
+            }
+            if (compressedSlot >= 0 && !sealed) {
+                // End the batch with a sync flush, so the server can decode all of it right away
+                compress(EMPTY, Deflater.SYNC_FLUSH);
+                buffers[compressedSlot] = ByteBuffer.wrap(compressed, 0, compressedLength);
+                sealed = true;
+            }
+            metrics.bytesWritten(channel.write(buffers, batchStart, batchEnd - batchStart));
+            while (batchStart < batchEnd && !buffers[batchStart].hasRemaining()) {
+                PendingWrite done = batch[batchStart];
+                batch[batchStart] = null;
+                buffers[batchStart] = null;
+                batchStart++;
+                if (done.future != null) {
+                    metrics.lineWritten();
+                    done.future.complete(null);
+                }
+            }
+            if (batchStart < batchEnd) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Fail every command that has not been written yet, and release the compressor. Called when the connection is
+     * closed.
+     *
+     * @param cause The reason
+     */
+    void failAll(Throwable cause) {
+        for (PendingWrite write : drainUnsent()) {
+            write.future.completeExceptionally(cause);
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Take every command that has not been completely written out of the queue, oldest first. Must be called by
+     * the writing thread, or after it has stopped.
+     *
+     * @return The unsent commands, with their futures still pending
+     */
+    List<PendingWrite> drainUnsent() {
+        List<PendingWrite> unsent = new ArrayList<>();
+        for (int i = batchStart; i < batchEnd; i++) {
+            addUnsent(unsent, batch[i]);
+            batch[i] = null;
+            buffers[i] = null;
+        }
+        resetBatch();
+        PendingWrite write;
+        while ((write = queue.poll()) != null) {
+            addUnsent(unsent, write);
+        }
+        return unsent;
+    }
+
+    private static void addUnsent(List<PendingWrite> unsent, PendingWrite write) {
+        // Skip the markers added by wakeUp()
+        if (write.future != null) {
+            unsent.add(write);
+        }
+    }
+
+    /**
+     * @return true if no command is waiting to be written
+     */
+    boolean isEmpty() {
+        return batchStart == batchEnd && queue.isEmpty();
+    }
+
+    /**
+     * @return Number of commands waiting in the queue, not counting a batch being written
+     */
+    int size() {
+        return queue.size();
+    }
+
+    private void appendToBatch(PendingWrite write) {
+        batch[batchEnd] = write;
+        ByteBuffer data = encode(write);
+        if (write.startsFraming) {
+            framed = true;
+        }
+        if (deflater == null) {
+            buffers[batchEnd] = data;
+            if (write.deflater != null) {
+                // This command goes out uncompressed, and ends the batch. The commands after it are compressed.
+                deflater = write.deflater;
+                sealed = true;
+            }
+        } else {
+            if (compressedSlot < 0) {
+                compressedSlot = batchEnd;
+            }
+            compress(data, Deflater.NO_FLUSH);
+            buffers[batchEnd] = EMPTY;
+        }
+        batchEnd++;
+    }
+
+    /**
+     * @return The bytes to send for a command in the current framing mode
+     */
+    private ByteBuffer encode(PendingWrite write) {
+        if (write.future == null) {
+            return write.data;
+        }
+        if (framed) {
+            ByteBuffer payload = write.data.duplicate();
+            // Without the newline
+            payload.limit(payload.limit() - 1);
+            return BinaryFraming.frame(payload);
+        }
+        if (write.command.indexOf('\n') >= 0 || write.command.indexOf('\r') >= 0) {
+            String line = write.command.replace('\n', ' ').replace('\r', ' ');
+            return StandardCharsets.UTF_8.encode(line + "\n");
+        }
+        return write.data;
+    }
+
+    private void resetBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        sealed = false;
+        compressedSlot = -1;
+        compressedLength = 0;
+    }
+
+    /**
+     * Compress bytes into the compressed buffer of the batch, growing it as needed.
+     *
+     * @param input The bytes, consumed completely
+     * @param flush Deflater.NO_FLUSH, or Deflater.SYNC_FLUSH to end the batch
+     */
+    private void compress(ByteBuffer input, int flush) {
+        deflater.setInput(input);
+        while (true) {
+            int space = compressed.length - compressedLength;
+            int length = deflater.deflate(compressed, compressedLength, space, flush);
+            compressedLength += length;
+            if (length < space && (flush != Deflater.NO_FLUSH || deflater.needsInput())) {
+                return;
+            }
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+        }
+    }
+
+    /**
+     * One command waiting to be written, and the future to complete when it is.
+     */
+    static class PendingWrite {
+        final String command;
+        final ByteBuffer data;
+        final CompletableFuture<Void> future;
+        // The compressor for the commands after this one, null if compression does not start here
+        final Deflater deflater;
+        // True if the commands after this one are sent as binary frames
+        final boolean startsFraming;
+
+        /**
+         * @param command The command, without the trailing newline
+         * @param future  The future to complete when the command is written, null for a wake-up marker
+         */
+        PendingWrite(String command, CompletableFuture<Void> future) {
+            this(command, future, null, false);
+        }
+
+        /**
+         * @param command       The command, without the trailing newline
+         * @param future        The future to complete when the command is written, null for a wake-up marker
+         * @param deflater      The compressor for the commands after this one, or null
+         * @param startsFraming True to send the commands after this one as binary frames
+         */
+        PendingWrite(String command, CompletableFuture<Void> future, Deflater deflater, boolean startsFraming) {
+            this.command = command;
+            this.data = future == null ? ByteBuffer.allocate(0) : StandardCharsets.UTF_8.encode(command + "\n");
+            this.future = future;
+            this.deflater = deflater;
+            this.startsFraming = startsFraming;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package no.ntnu.datakomm.chat;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tells a TCPClient how to reconnect when the connection to the server is lost. The delay between attempts grows
+ * exponentially and is randomised (jitter), so that many clients losing the same server do not all come back at
+ * the same moment. After a number of consecutive failures the circuit opens: the client waits for a longer
+ * cool-down period before each further attempt.
+ * <p>
+ * The policy holds no state of its own, one policy can be shared by many clients.
+ */
+public class ReconnectPolicy {
+    private Duration initialDelay = Duration.ofMillis(200);
+    private Duration maxDelay = Duration.ofSeconds(30);
+    private double jitter = 0.5;
+    private int failureThreshold = 8;
+    private Duration circuitOpenTime = Duration.ofMinutes(1);
+    private int maxAttempts = 0;
+    private boolean addressCaching = true;
+    private int replayCapacity = 1000;
+
+    /**
+     * Create a policy with the default settings: first attempt after 200 ms, doubling up to 30 s with 50 % jitter,
+     * a one minute cool-down after 8 failures in a row, unlimited attempts, cached server address and up to 1000
+     * messages kept for replay.
+     */
+    public ReconnectPolicy() {
+    }
+
+    /**
+     * @param initialDelay Delay before the first attempt
+     * @param maxDelay     Upper limit for the exponentially growing delay
+     */
+    public ReconnectPolicy(Duration initialDelay, Duration maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param jitter How much of each delay is randomised, from 0 (fixed delays) to 1 (anything between 0 and the
+     *               full delay)
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Set when the circuit opens.
+     *
+     * @param failureThreshold Number of failed attempts in a row after which the circuit opens, 0 to never open it
+     * @param circuitOpenTime  How long to wait before each attempt while the circuit is open
+     */
+    public void setCircuitBreaker(int failureThreshold, Duration circuitOpenTime) {
+        this.failureThreshold = failureThreshold;
+        this.circuitOpenTime = circuitOpenTime;
+    }
+
+    /**
+     * @param maxAttempts Number of failed attempts after which the client gives up, 0 to never give up
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param addressCaching When true, reconnect to the address resolved by the first connect(). When false, look
+     *                       up the host name again before each attempt.
+     */
+    public void setAddressCaching(boolean addressCaching) {
+        this.addressCaching = addressCaching;
+    }
+
+    public boolean isAddressCaching() {
+        return addressCaching;
+    }
+
+    /**
+     * @param replayCapacity Most messages kept while reconnecting, to be sent after the client has logged in again.
+     *                       When the buffer is full, the oldest message is dropped.
+     */
+    public void setReplayCapacity(int replayCapacity) {
+        this.replayCapacity = replayCapacity;
+    }
+
+    public int getReplayCapacity() {
+        return replayCapacity;
+    }
+
+    /**
+     * @param failures Number of failed attempts so far
+     * @return true if the client should stop trying
+     */
+    boolean isExhausted(int failures) {
+        return maxAttempts > 0 && failures >= maxAttempts;
+    }
+
+    /**
+     * @param failures Number of failed attempts so far
+     * @return true if the circuit is open after this many failures in a row
+     */
+    boolean isCircuitOpen(int failures) {
+        return failureThreshold > 0 && failures >= failureThreshold;
+    }
+
+    /**
+     * Get the delay before the next attempt.
+     *
+     * @param failures Number of failed attempts so far
+     * @return The delay in nanoseconds
+     */
+    long delayNanos(int failures) {
+        if (isCircuitOpen(failures)) {
+            return circuitOpenTime.toNanos();
+        }
+        long max = maxDelay.toNanos();
+        long delay = initialDelay.toNanos();
+        for (int i = 0; i < failures && delay < max; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, max);
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+}
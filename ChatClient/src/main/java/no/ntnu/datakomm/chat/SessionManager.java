@@ -0,0 +1,205 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns any number of chat sessions, each a TCPClient connected to its own server, on a fixed set of threads: a few
+ * NioEventLoops do all the socket I/O, and one dispatch pool runs the listeners of all sessions. Sessions are spread
+ * over the event loops round-robin. The number of threads stays the same however many sessions are open.
+ * <p>
+ * Every session has its own listener scope: listeners added to a session only get the events of that session.
+ * Events go through a ChatEventBus per session, so a slow listener never holds up the I/O threads. Listeners that
+ * must see every message, like a log or a search index, are added with addLosslessListener() to a second bus that
+ * makes the I/O thread wait instead of dropping events, and only once a listener is a full buffer behind.
+ */
+public class SessionManager implements Closeable {
+    // Events buffered per listener before the oldest are dropped (user lists are coalesced first), or for lossless
+    // listeners before the I/O thread waits
+    private static final int EVENT_BUFFER = 4096;
+
+    private final NioEventLoop[] eventLoops;
+    private final ScheduledThreadPoolExecutor dispatchPool;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextSession = new AtomicInteger(1);
+
+    /**
+     * Start the I/O and dispatch threads.
+     *
+     * @param ioThreads       Number of event loops, each one I/O thread
+     * @param dispatchThreads Number of threads running listener callbacks, connects and other background work
+     * @throws IOException When an event loop could not be opened
+     */
+    public SessionManager(int ioThreads, int dispatchThreads) throws IOException {
+        if (ioThreads < 1 || dispatchThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O and one dispatch thread are needed");
+        }
+        dispatchPool = new ScheduledThreadPoolExecutor(dispatchThreads,
+                ThreadFactories.platformFactory("session-dispatch-", true));
+        dispatchPool.prestartAllCoreThreads();
+        eventLoops = new NioEventLoop[ioThreads];
+        try {
+            for (int i = 0; i < ioThreads; i++) {
+                eventLoops[i] = new NioEventLoop(ThreadFactories.platformFactory("session-io-", true));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a new session. It is not connected yet, add its listeners and then call connect().
+     *
+     * @return The new session
+     */
+    public Session openSession() {
+        int id = nextSession.getAndIncrement();
+        Session session = new Session("session-" + id, eventLoops[(id - 1) % eventLoops.length]);
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * @return The open sessions, oldest first
+     */
+    public List<Session> getSessions() {
+        return List.copyOf(sessions);
+    }
+
+    /**
+     * Get the dispatch pool, for background work that belongs to the sessions, like polling. Tasks must not block
+     * for long, since the pool also delivers the events of every session.
+     *
+     * @return The dispatch pool
+     */
+    public ScheduledExecutorService getDispatchPool() {
+        return dispatchPool;
+    }
+
+    /**
+     * Close all sessions and stop all threads.
+     */
+    @Override
+    public void close() {
+        for (Session session : sessions) {
+            session.close();
+        }
+        for (NioEventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+        dispatchPool.shutdown();
+    }
+
+    /**
+     * One connection to one chat server, with its own listeners.
+     */
+    public class Session implements Closeable {
+        private final String name;
+        private final TCPClient client;
+        private final ChatEventBus events = new ChatEventBus(EVENT_BUFFER, ChatEventBus.OverflowPolicy.COALESCE);
+        private final ChatEventBus losslessEvents = new ChatEventBus(EVENT_BUFFER,
+                ChatEventBus.OverflowPolicy.BLOCK);
+
+        private Session(String name, NioEventLoop eventLoop) {
+            this.name = name;
+            client = new TCPClient(eventLoop);
+            client.addListener(events);
+            client.addListener(losslessEvents);
+        }
+
+        /**
+         * @return A name that tells this session apart from the others of the manager, like "session-1"
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The client of this session, for sending commands
+         */
+        public TCPClient getClient() {
+            return client;
+        }
+
+        /**
+         * Add a listener for the events of this session. Its callbacks run on the dispatch pool, one at a time.
+         *
+         * @param listener The listener
+         */
+        public void addListener(ChatListener listener) {
+            events.subscribe(listener, dispatchPool);
+        }
+
+        /**
+         * Add a listener that gets every event of this session, none dropped or coalesced. Its callbacks run on the
+         * dispatch pool, one at a time. When it falls a full buffer behind, the I/O thread waits for it.
+         *
+         * @param listener The listener
+         */
+        public void addLosslessListener(ChatListener listener) {
+            losslessEvents.subscribe(listener, dispatchPool);
+        }
+
+        /**
+         * Remove a listener of this session, added with either method. Events already buffered for it are
+         * discarded.
+         *
+         * @param listener The listener
+         */
+        public void removeListener(ChatListener listener) {
+            events.unsubscribe(listener);
+            losslessEvents.unsubscribe(listener);
+        }
+
+        /**
+         * @return Number of events dropped because a listener of this session fell too far behind
+         */
+        public long getDroppedEvents() {
+            return events.getDroppedCount();
+        }
+
+        /**
+         * @return The dispatch pool of the manager, see SessionManager.getDispatchPool()
+         */
+        public ScheduledExecutorService getDispatchPool() {
+            return dispatchPool;
+        }
+
+        /**
+         * Connect to a chat server and start listening, on the dispatch pool. The TCP handshake blocks a dispatch
+         * thread while it lasts.
+         *
+         * @param host Host name or IP address of the chat server
+         * @param port TCP port of the chat server
+         * @return A future that completes with true when connected, false when the connection failed (see
+         * TCPClient.getLastError())
+         */
+        public CompletableFuture<Boolean> connect(String host, int port) {
+            return CompletableFuture.supplyAsync(() -> {
+                boolean connected = client.connect(host, port);
+                if (connected) {
+                    client.startListenThread();
+                }
+                return connected;
+            }, dispatchPool);
+        }
+
+        /**
+         * Disconnect and remove the session from its manager.
+         */
+        @Override
+        public void close() {
+            client.disconnect();
+            sessions.remove(this);
+        }
+    }
+}
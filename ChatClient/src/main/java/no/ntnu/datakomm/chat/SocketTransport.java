@@ -0,0 +1,174 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The classic transport: a blocking socket with a dedicated thread reading the server's responses. Outgoing
+ * commands are queued and written by a separate writer thread, which coalesces everything queued within one
+ * flush window into a single gathering write.
+ */
+class SocketTransport implements Transport {
+    private static final Logger LOGGER = Logger.getLogger(SocketTransport.class.getName());
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final TCPClient client;
+    private final SocketChannel connection;
+    private final OutboundQueue outbound;
+    private final long flushWindowNanos;
+    private final ThreadFactory threadFactory;
+    private volatile boolean closing = false;
+    // True when the connection was lost rather than closed by the client
+    private volatile boolean lost = false;
+
+    /**
+     * Open a blocking connection to the server and start the writer thread.
+     *
+     * @param client        The client that will receive incoming lines
+     * @param serverAddress Address of the chat server
+     * @param flushWindowNanos How long the writer waits for more commands after the first one of a batch, 0 to
+     *                         write whatever is queued right away
+     * @param threadFactory Factory for the listen and writer threads
+     * @throws IOException When the connection could not be established
+     */
+    SocketTransport(TCPClient client, InetSocketAddress serverAddress, long flushWindowNanos,
+                    ThreadFactory threadFactory) throws IOException {
+        this.client = client;
+        outbound = new OutboundQueue(client.getMetrics());
+        this.flushWindowNanos = flushWindowNanos;
+        this.threadFactory = threadFactory;
+        connection = SocketChannel.open(serverAddress);
+        threadFactory.newThread(this::writeOutgoingCommands).start();
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String cmd) {
+        return outbound.add(cmd);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAndCompress(String cmd) {
+        return outbound.addAndCompress(cmd, WireCompression.newDeflater());
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAndStartFraming(String cmd) {
+        return outbound.addAndStartFraming(cmd);
+    }
+
+    @Override
+    public void startReading() {
+        // Call parseIncomingCommands() in the new thread.
+        threadFactory.newThread(this::parseIncomingCommands).start();
+    }
+
+    @Override
+    public int queuedCommands() {
+        return outbound.size();
+    }
+
+    @Override
+    public void close() {
+        // The writer thread flushes what is already queued, then closes the socket
+        closing = true;
+        outbound.wakeUp();
+    }
+
+    /**
+     * Read incoming bytes and let the decoder turn them into events. A loop that runs until the connection is closed.
+     */
+    private void parseIncomingCommands() {
+        CommandDecoder decoder = new CommandDecoder(client.getCommandRegistry(), client.getMetrics());
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            while (waitServerResponse(buffer) >= 0) {
+                buffer.flip();
+                decoder.decode(buffer);
+                buffer.clear();
+            }
+        } catch (UncheckedIOException e) {
+            LOGGER.log(Level.WARNING, "Could not decode the server's data", e.getCause());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Handling the server's data failed", e);
+        }
+        if (!closing) {
+            // The server closed the connection. The writer thread reports it, together with the unsent commands.
+            lost = true;
+            closing = true;
+            closeSocket();
+            outbound.wakeUp();
+        }
+    }
+
+    /**
+     * Wait for chat server's response
+     *
+     * @param buffer The buffer to read into
+     * @return number of bytes received from the server, or -1 when the connection is closed
+     */
+    private int waitServerResponse(ByteBuffer buffer) {
+        int bytesRead = -1;
+        try {
+            bytesRead = connection.read(buffer);
+        } catch (IOException e) {
+            if (connection.isOpen()) {
+                LOGGER.log(Level.WARNING, "Could not read from the server", e);
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * The writer thread: wait for queued commands, give more commands the chance to arrive during the flush window,
+     * then write them all at once. Runs until the transport is closed. If the connection was lost, the commands that
+     * were not written are handed back to the client, which may send them again after reconnecting.
+     */
+    private void writeOutgoingCommands() {
+        try {
+            while (!closing) {
+                outbound.awaitData();
+                if (flushWindowNanos > 0 && !closing) {
+                    TimeUnit.NANOSECONDS.sleep(flushWindowNanos);
+                }
+                outbound.flush(connection);
+            }
+        } catch (IOException e) {
+            if (connection.isOpen()) {
+                LOGGER.log(Level.WARNING, "Could not write to the server", e);
+                lost = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!lost) {
+            // Closed by the client: write what was queued before close(), also if it came after the last flush
+            try {
+                outbound.flush(connection);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not write the last commands before closing", e);
+            }
+        }
+        closeSocket();
+        if (lost) {
+            client.handleConnectionLost(this, outbound.drainUnsent());
+        }
+        outbound.failAll(new ClosedChannelException());
+    }
+
+    private void closeSocket() {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close the socket", e);
+        }
+    }
+}
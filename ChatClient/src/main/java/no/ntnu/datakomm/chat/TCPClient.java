@@ -2,19 +2,244 @@ package no.ntnu.datakomm.chat;
 
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
-    private Socket connection;
+    private static final Logger LOGGER = Logger.getLogger(TCPClient.class.getName());
+
+    // Sender names of received messages, shared by all clients so each user's name is one String in the histories
+    private static final NameTable SENDER_NAMES = new NameTable(1024);
+
+    // The connection to the server, null when not connected
+    private volatile Transport transport;
+
+    // When set, connections are driven by this shared selector loop instead of a blocking socket and listen thread
+    private final NioEventLoop eventLoop;
+
+    // How long a blocking connection's writer waits for more commands before it writes a batch
+    private volatile long flushWindowNanos = 0;
+
+    // Creates the listen and writer threads of blocking connections
+    private volatile ThreadFactory threadFactory = ThreadFactories.defaultFactory();
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    private final ListenerList listeners = new ListenerList();
+
+    // Bytes, lines, parse and listener times, queue depth and response times of this client
+    private final ClientMetrics metrics = new ClientMetrics();
+
+    // Handlers for the commands received from the server
+    private final CommandRegistry commands = new CommandRegistry();
+
+    // Requests waiting for a response, oldest first. The server answers requests of one kind in the order it got
+    // them, so each response completes the head of its queue.
+    private final Queue<CompletableFuture<LoginResult>> loginRequests = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<List<String>>> userRequests = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<List<String>>> supportedRequests = new ConcurrentLinkedQueue<>();
+
+    // How long the request methods wait for a response before their future fails with a TimeoutException
+    private volatile Duration requestTimeout = Duration.ofSeconds(10);
+
+    // What to do when the connection is lost, null to stay disconnected
+    private volatile ReconnectPolicy reconnectPolicy = null;
+    // True from the moment the connection is lost until the session is restored or the client gives up
+    private volatile boolean reconnecting = false;
+    private Thread reconnectThread;
+
+    // What is needed to restore the session after reconnecting
+    private volatile String serverHost;
+    private volatile int serverPort;
+    private volatile InetSocketAddress serverAddress;
+    private volatile String lastUsername;
+    private volatile boolean listening = false;
+
+    // Messages waiting to be sent once the session is restored, oldest first. Guarded by this.
+    private final Deque<OutboundQueue.PendingWrite> replayBuffer = new ArrayDeque<>();
+
+    // When true, user lists are compared with the roster and the differences reported as user joins and leaves
+    private volatile boolean presenceTracking = false;
+    // True when the server pushes userjoin and userleave events to this client
+    private volatile boolean presencePushed = false;
+    // Users known to be online, kept while presence tracking is on. Guarded by itself.
+    private final Set<String> roster = new HashSet<>();
+
+    // True when the connection should use the compressed wire mode, also after a reconnect
+    private volatile boolean compressionWanted = false;
+    // The enableCompression() request waiting for the server's answer, null if none
+    private volatile CompletableFuture<Boolean> compressionRequest;
+    // The connection that sent the command to start compression. Guarded by this.
+    private Transport compressedTransport;
+
+    // True when the connection should use binary framing, also after a reconnect
+    private volatile boolean framingWanted = false;
+    // The enableBinaryFraming() request waiting for the server's answer, null if none
+    private volatile CompletableFuture<Boolean> framingRequest;
+    // The connection that sent the command to start binary framing. Guarded by this.
+    private Transport framedTransport;
+
+    /**
+     * Create a client that uses a blocking socket and its own listen thread.
+     */
+    public TCPClient() {
+        this(null);
+    }
+
+    /**
+     * Create a client that uses a non-blocking socket driven by a shared event loop. Many clients can share one
+     * loop, and then all of them are served by a single I/O thread.
+     *
+     * @param eventLoop The event loop to use, or null to use a blocking socket
+     */
+    public TCPClient(NioEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+        metrics.setQueueDepthGauge(() -> {
+            Transport t = transport;
+            return t != null ? t.queuedCommands() : 0;
+        });
+        registerBuiltInCommands();
+    }
+
+    /**
+     * Register the handlers for the server responses defined in the chat protocol.
+     */
+    private void registerBuiltInCommands() {
+        commands.register("loginok", line -> completeLogin(true, ""));
+        commands.register("loginerr", line -> completeLogin(false, line.arguments()));
+        commands.register("supported", line -> {
+            CompletableFuture<List<String>> request = supportedRequests.poll();
+            if (request != null || hasListeners()) {
+                String[] supported = line.argumentWords();
+                if (!(request instanceof QuietRequest)) {
+                    onSupported(supported);
+                }
+                complete(request, List.of(supported));
+            }
+        });
+        commands.register("users", line -> {
+            CompletableFuture<List<String>> request = userRequests.poll();
+            if (request != null || hasListeners() || presenceTracking) {
+                String[] users = line.argumentWords();
+                onUsersList(users);
+                if (presenceTracking) {
+                    updateRoster(users);
+                }
+                complete(request, List.of(users));
+            }
+        });
+        commands.register("userjoin", line -> {
+            String username = line.firstArgument();
+            boolean added;
+            synchronized (roster) {
+                added = roster.add(username);
+            }
+            if (added) {
+                onUserJoined(username);
+            }
+        });
+        commands.register("userleave", line -> {
+            String username = line.firstArgument();
+            boolean removed;
+            synchronized (roster) {
+                removed = roster.remove(username);
+            }
+            if (removed) {
+                onUserLeft(username);
+            }
+        });
+        commands.register(WireCompression.RESPONSE, line -> {
+            // Everything the server sends after this line is compressed
+            line.decoder().startInflating(WireCompression.newInflater());
+            CompletableFuture<Boolean> request = compressionRequest;
+            compressionRequest = null;
+            complete(request, true);
+        });
+        commands.register(BinaryFraming.RESPONSE, line -> {
+            // Everything the server sends after this line is framed
+            line.decoder().startFrames();
+            CompletableFuture<Boolean> request = framingRequest;
+            framingRequest = null;
+            complete(request, true);
+        });
+        registerBuiltIn("msgerr", line -> onMsgError(line.arguments()));
+        registerBuiltIn("cmderr", line -> onCmdError(line.arguments()));
+        registerBuiltIn("msg", line -> onMsgReceived(false, line.firstArgument(SENDER_NAMES),
+                line.remainingArguments()));
+        registerBuiltIn("privmsg", line -> onMsgReceived(true, line.firstArgument(SENDER_NAMES),
+                line.remainingArguments()));
+    }
+
+    /**
+     * Handle a loginok or loginerr response: notify the listeners, then complete the oldest pending login request.
+     *
+     * @param success When true, login successful. When false, it failed
+     * @param errMsg  Error message if any
+     */
+    private void completeLogin(boolean success, String errMsg) {
+        onLoginResult(success, errMsg);
+        complete(loginRequests.poll(), new LoginResult(success, errMsg));
+    }
+
+    /**
+     * Complete a pending request, if there is one. Listeners are notified before this is called, so a caller
+     * waiting for the future sees the listener side effects too.
+     */
+    private static <T> void complete(CompletableFuture<T> request, T result) {
+        if (request != null) {
+            request.complete(result);
+        }
+    }
+
+    /**
+     * Register a handler that turns a server response into listener events. The handler is skipped when no
+     * listener is registered, so no Strings are built that nobody would look at.
+     *
+     * @param command The command word
+     * @param handler The handler
+     */
+    private void registerBuiltIn(String command, CommandHandler handler) {
+        commands.register(command, line -> {
+            if (hasListeners()) {
+                handler.handle(line);
+            }
+        });
+    }
+
+    /**
+     * Get the runtime metrics of this client: bytes and lines in and out, parse time, time spent in each
+     * listener, outbound queue depth and response times. Register them with JMX or take snapshots to see them.
+     *
+     * @return The metrics of this client
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the registry of handlers for commands received from the server. Applications can register handlers for
+     * extra server commands here (for example responses to "joke"), or replace the built-in ones.
+     *
+     * @return The command registry of this client
+     */
+    public CommandRegistry getCommandRegistry() {
+        return commands;
+    }
 
     /**
      * Connect to a chat server.
@@ -28,28 +253,45 @@ public class TCPClient {
         boolean connected = false;
 
         InetSocketAddress serverAddress = new InetSocketAddress(host, port);
+        serverHost = host;
+        serverPort = port;
+        this.serverAddress = serverAddress;
 
 
         try
         {
-            connection = new Socket();
-            connection.connect(serverAddress);
-            toServer = new PrintWriter(connection.getOutputStream(), true);
-            InputStream in = connection.getInputStream();
-            fromServer = new BufferedReader(new InputStreamReader(in));
+            // Forget requests left over from an earlier connection, their responses will never come
+            failPendingRequests();
+            transport = openTransport(serverAddress);
 
             connected = true;
 
         }
         catch (IOException ex)
         {
-            ex.printStackTrace();
+            lastError = ex.getMessage();
+            LOGGER.log(Level.WARNING, "Could not connect to " + serverAddress, ex);
         }
 
         return connected;
     }
 
 
+    /**
+     * Open a connection with the transport this client is configured for.
+     *
+     * @param serverAddress Address of the chat server
+     * @return The connected transport
+     * @throws IOException When the connection could not be established
+     */
+    private Transport openTransport(InetSocketAddress serverAddress) throws IOException {
+        if (eventLoop != null) {
+            return new NioTransport(this, eventLoop, serverAddress);
+        } else {
+            return new SocketTransport(this, serverAddress, flushWindowNanos, threadFactory);
+        }
+    }
+
     /**
      * Close the socket. This method must be synchronized, because several
      * threads may try to call it. For example: When "Disconnect" button is
@@ -57,45 +299,95 @@ public class TCPClient {
      * background thread trying to read server's response will get error in the
      * input stream and may try to call this method when the socket is already
      * in the process of being closed. with "synchronized" keyword we make sure
-     * that no two threads call this method in parallel.
+     * that no two threads call this method in parallel. Also stops a reconnect in progress.
      */
     public synchronized void disconnect() {
+        boolean wasReconnecting = reconnecting;
+        reconnecting = false;
+        if (reconnectThread != null) {
+            reconnectThread.interrupt();
+            reconnectThread = null;
+        }
+        failReplayBuffer(new IOException("Connection closed"));
+        presenceTracking = false;
+        presencePushed = false;
+        compressionWanted = false;
+        framingWanted = false;
+        synchronized (roster) {
+            roster.clear();
+        }
         if (isConnectionActive()) {
-            try {
-                toServer = null;
-                fromServer = null;
-                connection.close();
-                connection = null;
-                onDisconnect();
-            } catch (IOException i){
-                System.out.print("A socket error occurred");
-            }
+            transport.close();
+            transport = null;
+            failPendingRequests();
+            onDisconnect();
+        } else if (wasReconnecting) {
+            onDisconnect();
+        }
+    }
+
+    /**
+     * Fail all login, users and help requests still waiting for a response.
+     */
+    private void failPendingRequests() {
+        IOException closed = new IOException("Connection closed");
+        failAll(loginRequests, closed);
+        failAll(userRequests, closed);
+        failAll(supportedRequests, closed);
+        CompletableFuture<Boolean> compression = compressionRequest;
+        compressionRequest = null;
+        if (compression != null) {
+            compression.completeExceptionally(closed);
+        }
+        CompletableFuture<Boolean> framing = framingRequest;
+        framingRequest = null;
+        if (framing != null) {
+            framing.completeExceptionally(closed);
         }
     }
 
 
+    /**
+     * Fail every request still waiting for a response.
+     */
+    private static <T> void failAll(Queue<CompletableFuture<T>> requests, Throwable cause) {
+        CompletableFuture<T> request;
+        while ((request = requests.poll()) != null) {
+            request.completeExceptionally(cause);
+        }
+    }
+
     /**
      * @return true if the connection is active (opened), false if not.
      */
     public boolean isConnectionActive() {
-        return connection != null;
+        return transport != null;
     }
 
     /**
-     * Send a command to server.
+     * Send a command to server. The command is queued and written by the transport's writing thread, so this
+     * method does not block the caller.
      *
      * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
+     * @return A future that completes when the command has been written to the socket, or fails if it could not be
      */
-    private void sendCommand(String cmd) {
-        if(isConnectionActive()){
-            try{
-                toServer.println(cmd);
-            } catch (Exception e) {
-                System.out.print("A socket error occurred");
+    private CompletableFuture<Void> sendCommand(String cmd) {
+        if (reconnecting && isReplayable(cmd)) {
+            synchronized (this) {
+                if (reconnecting) {
+                    // Keep the message until the session is restored
+                    CompletableFuture<Void> sent = new CompletableFuture<>();
+                    bufferForReplay(new OutboundQueue.PendingWrite(cmd, sent), false);
+                    return sent;
+                }
             }
-        } else {
-            System.out.println("The connection was closed");
         }
+        Transport t = transport;
+        if (t == null) {
+            LOGGER.fine("Cannot send, the connection was closed");
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
+        }
+        return t.send(cmd);
     }
 
 
@@ -103,97 +395,352 @@ public class TCPClient {
      * Send a public message to all the recipients.
      *
      * @param message Message to send
+     * @return A future that completes when the message has been written to the socket
      */
-    public void sendPublicMessage(String message) {
-        try {
-            if(message.equals("/joke")){
-                sendCommand("joke");
-            } else {
-                sendCommand("msg " + message);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    public CompletableFuture<Void> sendPublicMessage(String message) {
+        if(message.equals("/joke")){
+            return sendCommand("joke");
+        } else {
+            return sendCommand("msg " + message);
         }
+    }
 
+    /**
+     * Send a login request to the chat server, followed by a request for the user list.
+     *
+     * @param username Username to use
+     * @return A future that completes when the login command has been written to the socket
+     */
+    public CompletableFuture<Void> tryLogin(String username) {
+        CompletableFuture<LoginResult> response = new CompletableFuture<>();
+        rememberUsername(username, response);
+        CompletableFuture<Void> sent = sendRequest(loginRequests, response, "login " + username);
+        refreshUserList();
+        return sent;
     }
 
     /**
-     * Send a login request to the chat server.
+     * Log in to the chat server.
      *
      * @param username Username to use
+     * @return A future that completes with the server's answer, or fails if there is no answer within the request
+     * timeout or the connection is closed
+     */
+    public CompletableFuture<LoginResult> login(String username) {
+        CompletableFuture<LoginResult> response = request(loginRequests, "login " + username);
+        rememberUsername(username, response);
+        return response;
+    }
+
+    /**
+     * Remember the username once the login succeeds, so the client can log in again after reconnecting.
+     */
+    private void rememberUsername(String username, CompletableFuture<LoginResult> response) {
+        response.thenAccept(result -> {
+            if (result.isSuccess()) {
+                lastUsername = username;
+            }
+        });
+    }
+
+    /**
+     * Ask the server for the users currently logged in.
+     *
+     * @return A future that completes with the usernames, or fails if there is no answer within the request
+     * timeout or the connection is closed
+     */
+    public CompletableFuture<List<String>> users() {
+        return request(userRequests, "users");
+    }
+
+    /**
+     * Ask the server for the commands it supports.
+     *
+     * @return A future that completes with the command words, or fails if there is no answer within the request
+     * timeout or the connection is closed
+     */
+    public CompletableFuture<List<String>> supportedCommands() {
+        return request(supportedRequests, "help");
+    }
+
+    /**
+     * Turn on presence tracking: from now on the listeners get onUserJoined and onUserLeft events. If the server
+     * supports the "presence" command, it pushes every login and logout to the client, and polling the user list is
+     * no longer needed. Otherwise the events are derived from the user lists the client receives, so the caller
+     * should keep polling, for example with a UserListPoller. The subscription is renewed after a reconnect.
+     *
+     * @return A future that completes with true when the server pushes presence events, false when it does not
+     * and the user list must be polled
+     */
+    public CompletableFuture<Boolean> enablePresence() {
+        presenceTracking = true;
+        // Ask quietly: the listeners did not ask for the command list
+        QuietRequest<List<String>> supported = new QuietRequest<>();
+        sendRequest(supportedRequests, supported, "help");
+        return supported.orTimeout(requestTimeout.toNanos(), TimeUnit.NANOSECONDS).thenCompose(commandList -> {
+            if (!commandList.contains("presence")) {
+                return CompletableFuture.completedFuture(false);
+            }
+            presencePushed = true;
+            // The server answers with the current user list, which fills the roster
+            return request(userRequests, "presence on").thenApply(users -> true);
+        });
+    }
+
+    /**
+     * Turn on the compressed wire mode, if the server supports it: from now on both sides send a DEFLATE stream
+     * instead of plain text, see WireCompression. This pays off for repetitive traffic on slow or metered links.
+     * The compression is turned on again after a reconnect. The TCPClient API and the listener events stay the same.
+     *
+     * @return A future that completes with true when both directions are compressed, false when the server does not
+     * support compression
      */
-    public void tryLogin(String username) {
-        try {
-            sendCommand("login " + username);
-            refreshUserList();
-        }catch (Exception e){
-            e.printStackTrace();
+    public CompletableFuture<Boolean> enableCompression() {
+        compressionWanted = true;
+        return whenSupported(WireCompression.COMMAND, this::startCompression);
+    }
+
+    /**
+     * Turn on binary framing, if the server supports it: from now on both sides send each command as a
+     * length-prefixed frame instead of a line, see BinaryFraming. Messages may then contain line breaks, and large
+     * messages are received without scanning for the end of the line. Call it right after connecting; it is turned
+     * on again after a reconnect. The TCPClient API and the listener events stay the same. Can be combined with
+     * enableCompression().
+     *
+     * @return A future that completes with true when both directions are framed, false when the server does not
+     * support binary framing
+     */
+    public CompletableFuture<Boolean> enableBinaryFraming() {
+        framingWanted = true;
+        return whenSupported(BinaryFraming.COMMAND, this::startBinaryFraming);
+    }
+
+    /**
+     * Ask the server whether it supports a command, and start a wire mode if it does.
+     *
+     * @param command The command word the server must list
+     * @param start   Starts the wire mode
+     * @return A future that completes with the result of start, or false when the command is not supported
+     */
+    private CompletableFuture<Boolean> whenSupported(String command, Supplier<CompletableFuture<Boolean>> start) {
+        // Ask quietly: the listeners did not ask for the command list
+        QuietRequest<List<String>> supported = new QuietRequest<>();
+        sendRequest(supportedRequests, supported, "help");
+        return supported.orTimeout(requestTimeout.toNanos(), TimeUnit.NANOSECONDS).thenCompose(commandList -> {
+            if (!commandList.contains(command)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return start.get();
+        });
+    }
+
+    /**
+     * Send the command that starts compression, unless the connection is already compressed.
+     *
+     * @return A future that completes with true when the server has answered
+     */
+    private synchronized CompletableFuture<Boolean> startCompression() {
+        Transport t = transport;
+        if (t == null) {
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
         }
+        if (compressionRequest != null || t == compressedTransport) {
+            return CompletableFuture.completedFuture(true);
+        }
+        CompletableFuture<Boolean> response = new CompletableFuture<>();
+        compressionRequest = response;
+        compressedTransport = t;
+        t.sendAndCompress(WireCompression.COMMAND).whenComplete((ignored, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+            }
+        });
+        return response.orTimeout(requestTimeout.toNanos(), TimeUnit.NANOSECONDS);
     }
 
     /**
-     * Send a request for latest user list to the server. To get the new users,
-     * clear your current user list and use events in the listener.
+     * Send the command that starts binary framing, unless the connection is already framed.
+     *
+     * @return A future that completes with true when the server has answered
      */
-    public void refreshUserList() {
-        sendCommand("users");
+    private synchronized CompletableFuture<Boolean> startBinaryFraming() {
+        Transport t = transport;
+        if (t == null) {
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
+        }
+        if (framingRequest != null || t == framedTransport) {
+            return CompletableFuture.completedFuture(true);
+        }
+        CompletableFuture<Boolean> response = new CompletableFuture<>();
+        framingRequest = response;
+        framedTransport = t;
+        t.sendAndStartFraming(BinaryFraming.COMMAND).whenComplete((ignored, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+            }
+        });
+        return response.orTimeout(requestTimeout.toNanos(), TimeUnit.NANOSECONDS);
     }
 
     /**
-     * Send a private message to a single recipient.
+     * Compare a user list with the roster, report who joined and who left, and make it the new roster.
      *
-     * @param recipient username of the chat user who should receive the message
-     * @param message   Message to send
+     * @param users The users online now
      */
-    public void sendPrivateMessage(String recipient, String message) {
-        if (isConnectionActive()) {
-            try {
-                sendCommand("privmsg " + recipient + " " + message);
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void updateRoster(String[] users) {
+        List<String> joined = new ArrayList<>();
+        List<String> left;
+        synchronized (roster) {
+            Set<String> online = new HashSet<>(List.of(users));
+            for (String user : users) {
+                if (roster.add(user)) {
+                    joined.add(user);
+                }
             }
+            left = new ArrayList<>();
+            roster.removeIf(user -> {
+                if (!online.contains(user)) {
+                    left.add(user);
+                    return true;
+                }
+                return false;
+            });
         }
+        for (String user : left) {
+            onUserLeft(user);
+        }
+        for (String user : joined) {
+            onUserJoined(user);
+        }
+    }
 
+    /**
+     * Set the factory for the listen and writer threads of blocking connections. By default these are virtual
+     * threads on JDK 21 and newer, see ThreadFactories. Applies to connections opened after the call.
+     *
+     * @param threadFactory The thread factory
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
     }
 
+    /**
+     * @return The factory used for the listen and writer threads of blocking connections
+     */
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
 
     /**
-     * Send a request for the list of commands that server supports.
+     * Set how long login(), users() and supportedCommands() wait for the server's answer.
+     *
+     * @param timeout The timeout, 10 seconds by default
      */
-    public void askSupportedCommands() {
-        try {
-            sendCommand("help");
+    public void setRequestTimeout(Duration timeout) {
+        requestTimeout = timeout;
+    }
 
-        }catch (Exception e){
-            e.printStackTrace();
+    /**
+     * Send a request and return a future for its response. Several requests can be in flight at the same time.
+     *
+     * @param pending The queue of requests waiting for the same kind of response
+     * @param cmd     The command to send
+     * @return A future for the response, failing after the request timeout
+     */
+    private <T> CompletableFuture<T> request(Queue<CompletableFuture<T>> pending, String cmd) {
+        CompletableFuture<T> response = new CompletableFuture<>();
+        sendRequest(pending, response, cmd);
+        return response.orTimeout(requestTimeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
 
+    /**
+     * Send a request and queue the future that its response will complete. Every request must get a place in the
+     * queue, also when nobody waits for the response, otherwise the responses would be matched with the wrong
+     * requests.
+     *
+     * @param pending  The queue of requests waiting for the same kind of response
+     * @param response The future to complete with the response
+     * @param cmd      The command to send
+     * @return A future that completes when the command has been written to the socket
+     */
+    private <T> CompletableFuture<Void> sendRequest(Queue<CompletableFuture<T>> pending,
+                                                    CompletableFuture<T> response, String cmd) {
+        if (!isConnectionActive()) {
+            IOException notConnected = new IOException("Not connected");
+            response.completeExceptionally(notConnected);
+            return CompletableFuture.failedFuture(notConnected);
+        }
+        // Keyed by the response: "presence on" is answered with a user list
+        Histogram responseTime = metrics.responseTime(cmd.startsWith("login ") ? "login"
+                : cmd.equals("help") ? "help" : "users");
+        long sentAt = System.nanoTime();
+        response.thenRun(() -> responseTime.record(System.nanoTime() - sentAt));
+        CompletableFuture<Void> sent;
+        // Queue the future and the command in the same order, also when several threads send requests at once
+        synchronized (pending) {
+            pending.add(response);
+            sent = sendCommand(cmd);
         }
+        sent.whenComplete((ignored, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+            }
+        });
+        return sent;
     }
 
+    /**
+     * A request whose response completes its future without notifying the listeners, for requests the client
+     * makes on its own behalf.
+     */
+    private static class QuietRequest<T> extends CompletableFuture<T> {
+    }
 
+    /**
+     * Send a request for latest user list to the server. To get the new users,
+     * clear your current user list and use events in the listener.
+     *
+     * @return A future that completes when the request has been written to the socket
+     */
+    public CompletableFuture<Void> refreshUserList() {
+        return sendRequest(userRequests, new CompletableFuture<>(), "users");
+    }
 
     /**
-     * Wait for chat server's response
+     * Send a private message to a single recipient.
      *
-     * @return one line of text (one command) received from the server
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return A future that completes when the message has been written to the socket
      */
-    private String waitServerResponse() {
-        String response = null;
-        try {
-            response = fromServer.readLine();
-            if (response == null) {
-                disconnect();
-            }
+    public CompletableFuture<Void> sendPrivateMessage(String recipient, String message) {
+        return sendCommand("privmsg " + recipient + " " + message);
+    }
 
-        } catch (Exception e){
-            e.printStackTrace();
-            disconnect();
-        }
 
-        return response;
+    /**
+     * Send a request for the list of commands that server supports.
+     *
+     * @return A future that completes when the request has been written to the socket
+     */
+    public CompletableFuture<Void> askSupportedCommands() {
+        return sendRequest(supportedRequests, new CompletableFuture<>(), "help");
+    }
+
+    /**
+     * Set how long the writer of a blocking connection waits for more commands before writing a batch. A longer
+     * window gives fewer, bigger writes for bursts of commands, at the cost of latency for single commands.
+     * Event loop connections write whatever is queued each time the I/O thread gets to them, and ignore this.
+     * Applies to connections opened after the call.
+     *
+     * @param flushWindow The flush window, Duration.ZERO (the default) to write queued commands right away
+     */
+    public void setFlushWindow(Duration flushWindow) {
+        flushWindowNanos = flushWindow.toNanos();
     }
 
 
+
     /**
      * Get the last error message
      *
@@ -204,93 +751,241 @@ public class TCPClient {
     }
 
     /**
-     * Start listening for incoming commands from the server in a new CPU thread.
+     * Start listening for incoming commands from the server. With a blocking socket this starts a new thread from
+     * the thread factory, with an event loop the shared I/O thread starts reading for this client.
      */
     public void startListenThread() {
-        // Call parseIncomingCommands() in the new thread.
-        Thread t = new Thread(this::parseIncomingCommands);
-        t.start();
+        listening = true;
+        Transport t = transport;
+        if (t != null) {
+            t.startReading();
+        }
     }
 
     /**
-     * Read incoming messages one by one, generate events for the listeners. A loop that runs until
-     * the connection is closed.
+     * Called by the transport when the server closed the connection or the socket failed. Without a reconnect
+     * policy the client is disconnected, with one a reconnect starts.
+     *
+     * @param source The transport that lost its connection
+     * @param unsent The commands the transport had not written yet
      */
-    private void parseIncomingCommands() {
-        try {
+    synchronized void handleConnectionLost(Transport source, List<OutboundQueue.PendingWrite> unsent) {
+        IOException lost = new IOException("Connection lost");
+        if (transport != source) {
+            failWrites(unsent, lost);
+            return;
+        }
+        ReconnectPolicy policy = reconnectPolicy;
+        // Set before the transport is cleared, so the client is never seen as neither connected nor reconnecting
+        reconnecting = policy != null;
+        transport = null;
+        failPendingRequests();
+        if (policy == null) {
+            failWrites(unsent, lost);
+            onDisconnect();
+            return;
+        }
+        // The unsent messages are older than anything already in the replay buffer, so they go first
+        for (int i = unsent.size() - 1; i >= 0; i--) {
+            OutboundQueue.PendingWrite write = unsent.get(i);
+            if (isReplayable(write.command)) {
+                bufferForReplay(write, true);
+            } else {
+                write.future.completeExceptionally(lost);
+            }
+        }
+        reconnectThread = threadFactory.newThread(() -> reconnect(policy));
+        reconnectThread.start();
+    }
 
-            while (isConnectionActive()) {
+    /**
+     * Set what the client does when the connection is lost. With a policy, the client reconnects with backoff, logs
+     * in again with the last username that logged in successfully, resumes listening if it was listening, and then
+     * sends the messages that could not be sent while the connection was down. Listeners stay registered and get
+     * onDisconnect() only if the client gives up.
+     *
+     * @param policy The reconnect policy, or null to stay disconnected when the connection is lost (the default)
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        reconnectPolicy = policy;
+    }
 
-                String serverResponse = waitServerResponse(); //Lagrer server responsen som en String
-                String inputCase = null;
-                String serverMessage = "";
+    /**
+     * @return true while the client is trying to restore a lost connection
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
 
-                if (serverResponse != null) {
-                    String[] responseArr = serverResponse.split(" ", 2); //Legger til responen i en array, og splitter første ordet some er koden i inputcase
-                    inputCase = responseArr[0]; //Bytter til riktig case iforhold til serverresponsen
-                    if (responseArr.length > 1) {
-                        serverMessage = responseArr[1];
-                    }
+    /**
+     * The reconnect thread: try to connect again, with the delays given by the policy, until it succeeds, the
+     * policy gives up or disconnect() is called.
+     *
+     * @param policy The reconnect policy
+     */
+    private void reconnect(ReconnectPolicy policy) {
+        int failures = 0;
+        while (reconnecting && !policy.isExhausted(failures)) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(policy.delayNanos(failures));
+            } catch (InterruptedException e) {
+                // disconnect() was called
+                Thread.currentThread().interrupt();
+                return;
+            }
+            InetSocketAddress address = serverAddress;
+            if (!policy.isAddressCaching() || address.isUnresolved()) {
+                address = new InetSocketAddress(serverHost, serverPort);
+            }
+            try {
+                Transport t = openTransport(address);
+                if (!restoreSession(t)) {
+                    t.close();
+                }
+                return;
+            } catch (IOException e) {
+                lastError = e.getMessage();
+                failures++;
+            }
+        }
+        giveUp();
+    }
 
+    /**
+     * Take a new connection into use and log in again. The replay buffer is sent when the login succeeds.
+     *
+     * @param t The new connection
+     * @return false if the reconnect was cancelled in the meantime
+     */
+    private synchronized boolean restoreSession(Transport t) {
+        if (!reconnecting) {
+            return false;
+        }
+        reconnectThread = null;
+        transport = t;
+        if (listening) {
+            t.startReading();
+        }
+        String username = lastUsername;
+        if (username == null) {
+            replay(t);
+        } else {
+            CompletableFuture<LoginResult> response = new CompletableFuture<>();
+            sendRequest(loginRequests, response, "login " + username);
+            response.orTimeout(requestTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                    .whenComplete((result, e) -> finishRestore(t, result != null && result.isSuccess()));
+        }
+        return true;
+    }
 
-                }
+    /**
+     * Called when the login on a new connection is done.
+     *
+     * @param t       The new connection
+     * @param success True if the login succeeded
+     */
+    private synchronized void finishRestore(Transport t, boolean success) {
+        if (transport != t || !reconnecting) {
+            return;
+        }
+        if (success) {
+            replay(t);
+        } else {
+            // Stay connected but not logged in, the listeners got the login error
+            reconnecting = false;
+            failReplayBuffer(new IOException("Login failed after reconnecting"));
+        }
+    }
 
-                switch (Objects.requireNonNull(inputCase)) {
-                    case "loginok\n":
-                        onLoginResult(true, "");
-                        break;
-
-                    case "loginerr":
-                        onLoginResult(false, serverMessage);
-                        break;
-
-                    case "msgerr":
-                        onMsgError(serverMessage);
-                        break;
-
-                    case "supported":
-                        String[] supportedCommands = serverMessage.split(" ");
-                        onSupported(supportedCommands);
-                        break;
-
-                    case "cmderr":
-                        onCmdError(serverMessage);
-                        break;
-
-                    case "users":
-                        String[] usersArr = serverMessage.split(" ");
-                        onUsersList(usersArr);
-                        break;
-
-                    case "msg":
-                        if (serverMessage != null){
-                            String[] messageArr = serverMessage.split(" ",2);
-                            String sender = messageArr[0];
-                            String publicMessage = messageArr[1];
-                            onMsgReceived(false, sender , publicMessage);
-                        }
-                        break;
-
-                    case "privmsg":
-                        if (serverMessage != null){
-                            String[] messageArr = serverMessage.split(" ",2);
-                            String sender = messageArr[0];
-                            String privateMessage = messageArr[1];
-                            onMsgReceived(true, sender , privateMessage);
-                        }
-                        break;
-
-                    default:
-                        break;
+    /**
+     * Send the replay buffer on the new connection and end the reconnect.
+     *
+     * @param t The new connection
+     */
+    private synchronized void replay(Transport t) {
+        if (presencePushed) {
+            // The new connection has no presence subscription yet. Its user list reports what changed meanwhile.
+            sendRequest(userRequests, new CompletableFuture<>(), "presence on");
+        }
+        if (compressionWanted) {
+            // The new connection starts uncompressed
+            enableCompression();
+        }
+        if (framingWanted) {
+            // The new connection starts with lines
+            enableBinaryFraming();
+        }
+        OutboundQueue.PendingWrite write;
+        while ((write = replayBuffer.pollFirst()) != null) {
+            CompletableFuture<Void> original = write.future;
+            t.send(write.command).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    original.completeExceptionally(e);
+                } else {
+                    original.complete(null);
                 }
+            });
+        }
+        reconnecting = false;
+    }
 
+    /**
+     * Stop reconnecting after the policy ran out of attempts.
+     */
+    private synchronized void giveUp() {
+        if (reconnecting) {
+            reconnecting = false;
+            reconnectThread = null;
+            failReplayBuffer(new IOException("Could not reconnect: " + getLastError()));
+            onDisconnect();
+        }
+    }
 
+    /**
+     * Keep a message for sending after reconnecting. When the buffer is full, the oldest message is dropped.
+     *
+     * @param write The message and its future
+     * @param first When true, put it in front of the messages already buffered
+     */
+    private synchronized void bufferForReplay(OutboundQueue.PendingWrite write, boolean first) {
+        ReconnectPolicy policy = reconnectPolicy;
+        int capacity = policy != null ? policy.getReplayCapacity() : 0;
+        if (capacity <= 0) {
+            write.future.completeExceptionally(new IOException("Connection lost"));
+            return;
+        }
+        if (replayBuffer.size() >= capacity) {
+            OutboundQueue.PendingWrite dropped = first ? write : replayBuffer.pollFirst();
+            dropped.future.completeExceptionally(new IOException("Replay buffer full"));
+            if (first) {
+                return;
             }
-        }catch (NullPointerException e)
-        {
-            System.out.println(e);
         }
+        if (first) {
+            replayBuffer.addFirst(write);
+        } else {
+            replayBuffer.addLast(write);
+        }
+    }
+
+    private synchronized void failReplayBuffer(Throwable cause) {
+        OutboundQueue.PendingWrite write;
+        while ((write = replayBuffer.pollFirst()) != null) {
+            write.future.completeExceptionally(cause);
+        }
+    }
 
+    private static void failWrites(List<OutboundQueue.PendingWrite> writes, Throwable cause) {
+        for (OutboundQueue.PendingWrite write : writes) {
+            write.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return true for commands that are kept and sent again after a reconnect: public and private messages
+     */
+    private static boolean isReplayable(String cmd) {
+        return cmd.startsWith("msg ") || cmd.startsWith("privmsg ");
     }
 
     /**
@@ -299,11 +994,18 @@ public class TCPClient {
      * @param listener listener
      */
     public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
+        if (listeners.add(listener)) {
+            metrics.track(listener);
         }
     }
 
+    /**
+     * @return true if at least one listener is registered
+     */
+    private boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
     /**
      * Unregister an event listener
      *
@@ -311,6 +1013,7 @@ public class TCPClient {
      */
     public void removeListener(ChatListener listener) {
         listeners.remove(listener);
+        metrics.forget(listener);
     }
 
 
@@ -327,8 +1030,10 @@ public class TCPClient {
      * @param errMsg  Error message if any
      */
     private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
             l.onLoginResult(success, errMsg);
+            metrics.dispatched(l, started);
         }
     }
 
@@ -337,8 +1042,10 @@ public class TCPClient {
      * Internet error)
      */
     private void onDisconnect() {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
             l.onDisconnect();
+            metrics.dispatched(l, started);
         }
     }
 
@@ -348,8 +1055,37 @@ public class TCPClient {
      * @param users List with usernames
      */
     private void onUsersList(String[] users) {
-        for (ChatListener l : listeners)
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
             l.onUserList(users);
+            metrics.dispatched(l, started);
+        }
+    }
+
+    /**
+     * Notify listeners that a user came online.
+     *
+     * @param username The user
+     */
+    private void onUserJoined(String username) {
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
+            l.onUserJoined(username);
+            metrics.dispatched(l, started);
+        }
+    }
+
+    /**
+     * Notify listeners that a user went offline.
+     *
+     * @param username The user
+     */
+    private void onUserLeft(String username) {
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
+            l.onUserLeft(username);
+            metrics.dispatched(l, started);
+        }
     }
 
     /**
@@ -360,8 +1096,11 @@ public class TCPClient {
      * @param text   Message text
      */
     private void onMsgReceived(boolean priv, String sender, String text) {
-        for (ChatListener l : listeners){
-            l.onMessageReceived(new TextMessage(sender,priv,text));
+        TextMessage message = new TextMessage(sender, priv, text);
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
+            l.onMessageReceived(message);
+            metrics.dispatched(l, started);
         }
     }
 
@@ -371,8 +1110,10 @@ public class TCPClient {
      * @param errMsg Error description returned by the server
      */
     private void onMsgError(String errMsg) {
-        for (ChatListener l :listeners){
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
             l.onMessageError(errMsg);
+            metrics.dispatched(l, started);
         }
     }
 
@@ -382,9 +1123,10 @@ public class TCPClient {
      * @param errMsg Error message
      */
     private void onCmdError(String errMsg) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
             l.onCommandError(errMsg);
-
+            metrics.dispatched(l, started);
         }
     }
 
@@ -395,8 +1137,10 @@ public class TCPClient {
      * @param commands Commands supported by the server
      */
     private void onSupported(String[] commands) {
-        for (ChatListener l : listeners){
+        for (ChatListener l : listeners.snapshot()) {
+            long started = System.nanoTime();
             l.onSupportedCommands(commands);
+            metrics.dispatched(l, started);
         }
     }
 }
@@ -0,0 +1,78 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories for the background threads of the chat client (listen, writer, connect and polling threads).
+ * On JDK 21 and newer the default factory creates virtual threads, so a single JVM can host thousands of
+ * TCPClient sessions. On older JDKs it falls back to daemon platform threads.
+ */
+public final class ThreadFactories {
+    private static final ThreadFactory DEFAULT = createDefault();
+
+    private ThreadFactories() {
+    }
+
+    /**
+     * Get the default factory: virtual threads when the JDK supports them, daemon platform threads otherwise.
+     *
+     * @return The default thread factory
+     */
+    public static ThreadFactory defaultFactory() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return true if the default factory creates virtual threads
+     */
+    public static boolean isVirtualDefault() {
+        return !(DEFAULT instanceof PlatformThreadFactory);
+    }
+
+    /**
+     * Create a factory for named platform threads.
+     *
+     * @param namePrefix Prefix of the thread names, a sequence number is appended
+     * @param daemon     When true, the threads do not keep the JVM alive
+     * @return The thread factory
+     */
+    public static ThreadFactory platformFactory(String namePrefix, boolean daemon) {
+        return new PlatformThreadFactory(namePrefix, daemon);
+    }
+
+    /**
+     * Look up Thread.ofVirtual().factory() by reflection, so the client still compiles and runs on JDK 17.
+     */
+    private static ThreadFactory createDefault() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return platformFactory("chat-client-", true);
+        }
+    }
+
+    /**
+     * Creates platform threads with a name prefix and daemon flag.
+     */
+    private static class PlatformThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final boolean daemon;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PlatformThreadFactory(String namePrefix, boolean daemon) {
+            this.namePrefix = namePrefix;
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread t = new Thread(task, namePrefix + count.incrementAndGet());
+            t.setDaemon(daemon);
+            return t;
+        }
+    }
+}
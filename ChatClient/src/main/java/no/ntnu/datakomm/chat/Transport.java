@@ -0,0 +1,51 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The byte-moving part of a TCPClient connection. A transport sends commands to the server and hands every
+ * line received from the server back to its TCPClient. The TCPClient itself only deals with the chat protocol.
+ */
+interface Transport {
+
+    /**
+     * Queue one command for sending to the server. The newline is added by the transport. Does not block.
+     *
+     * @param cmd The command, without the trailing newline
+     * @return A future that completes when the command has been written to the socket, or fails if the connection
+     * is closed first
+     */
+    CompletableFuture<Void> send(String cmd);
+
+    /**
+     * Queue a command like send(), and compress everything sent after it, see WireCompression.
+     *
+     * @param cmd The command, without the trailing newline. It is sent uncompressed.
+     * @return A future that completes when the command has been written to the socket
+     */
+    CompletableFuture<Void> sendAndCompress(String cmd);
+
+    /**
+     * Queue a command like send(), and send everything after it as binary frames, see BinaryFraming.
+     *
+     * @param cmd The command, without the trailing newline. It is sent as a line.
+     * @return A future that completes when the command has been written to the socket
+     */
+    CompletableFuture<Void> sendAndStartFraming(String cmd);
+
+    /**
+     * Start delivering incoming lines to the TCPClient. Lines are not read before this is called.
+     */
+    void startReading();
+
+    /**
+     * @return Number of commands waiting to be written
+     */
+    int queuedCommands();
+
+    /**
+     * Close the underlying socket once the commands already queued have been written. Safe to call several times
+     * and from any thread.
+     */
+    void close();
+}
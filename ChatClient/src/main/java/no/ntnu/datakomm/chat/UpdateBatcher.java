@@ -0,0 +1,88 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects GUI updates from background threads and applies them in batches, once per frame, instead of posting
+ * one task to the GUI thread per update. Submitting is lock-free. A frame stops applying updates when its time
+ * budget is used up and leaves the rest for the next frame, so the GUI keeps rendering and reacting to input
+ * during a burst.
+ * <p>
+ * The batcher does not know the GUI toolkit: requestFrame is called when runFrame() should be called on the GUI
+ * thread at the next frame. At most one frame is requested at a time.
+ */
+public class UpdateBatcher {
+    private static final Logger LOGGER = Logger.getLogger(UpdateBatcher.class.getName());
+
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean frameRequested = new AtomicBoolean(false);
+    private final Runnable requestFrame;
+    private final long frameBudgetNanos;
+
+    /**
+     * @param requestFrame Arranges for runFrame() to be called on the GUI thread at the next frame
+     * @param frameBudget  How long one frame may spend on updates, in milliseconds
+     */
+    public UpdateBatcher(Runnable requestFrame, long frameBudget) {
+        this.requestFrame = requestFrame;
+        this.frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudget);
+    }
+
+    /**
+     * Queue an update for the next frame. Can be called from any thread. Updates are applied in the order they
+     * were submitted.
+     *
+     * @param update The update, run on the GUI thread
+     */
+    public void submit(Runnable update) {
+        updates.offer(update);
+        if (frameRequested.compareAndSet(false, true)) {
+            requestFrame.run();
+        }
+    }
+
+    /**
+     * Apply the queued updates, until the queue is empty or the frame budget is used up. Must be called on the
+     * GUI thread. If updates are left, the next frame is requested.
+     *
+     * @return Number of updates applied
+     */
+    public int runFrame() {
+        long deadline = System.nanoTime() + frameBudgetNanos;
+        int applied = 0;
+        Runnable update;
+        while ((update = updates.poll()) != null) {
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                // One failing update must not stop the others
+                LOGGER.log(Level.WARNING, "A GUI update failed", e);
+            }
+            applied++;
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        if (updates.isEmpty()) {
+            frameRequested.set(false);
+            // An update may have been submitted after the queue was found empty, but before the flag was cleared
+            if (updates.isEmpty() || !frameRequested.compareAndSet(false, true)) {
+                return applied;
+            }
+        }
+        requestFrame.run();
+        return applied;
+    }
+
+    /**
+     * @return Number of updates waiting for a frame
+     */
+    public int getPendingCount() {
+        return updates.size();
+    }
+}
@@ -0,0 +1,75 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the user list for servers that do not push presence events. The interval adapts to the activity: after
+ * a poll that found no change it doubles, up to a maximum, and after a change it drops back to the minimum. A
+ * quiet server is then asked rarely, a busy one often.
+ */
+public class UserListPoller {
+    private final TCPClient client;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+
+    /**
+     * @param client      The client to poll with
+     * @param minInterval Time between polls while the user list changes
+     * @param maxInterval Longest time between polls while the user list stays the same
+     */
+    public UserListPoller(TCPClient client, Duration minInterval, Duration maxInterval) {
+        this.client = client;
+        this.minIntervalNanos = minInterval.toNanos();
+        this.maxIntervalNanos = Math.max(minIntervalNanos, maxInterval.toNanos());
+    }
+
+    /**
+     * Start polling. Every poll is a task on the scheduler, and no thread waits between polls. Polls until the
+     * connection is closed. While the client reconnects, polls are skipped, and polling goes on once it is back.
+     *
+     * @param scheduler The scheduler that runs the polls
+     * @return A future that completes when polling stops
+     */
+    public CompletableFuture<Void> schedule(ScheduledExecutorService scheduler) {
+        CompletableFuture<Void> stopped = new CompletableFuture<>();
+        poll(scheduler, minIntervalNanos, null, stopped);
+        return stopped;
+    }
+
+    /**
+     * Ask for the user list, and schedule the next poll when the answer arrives.
+     */
+    private void poll(ScheduledExecutorService scheduler, long interval, Set<String> previous,
+                      CompletableFuture<Void> stopped) {
+        if ((!client.isConnectionActive() && !client.isReconnecting()) || scheduler.isShutdown()) {
+            stopped.complete(null);
+            return;
+        }
+        CompletableFuture<List<String>> answer = client.isConnectionActive() ? client.users()
+                : CompletableFuture.failedFuture(new IOException("Reconnecting"));
+        answer.whenComplete((users, e) -> {
+            long nextInterval = interval;
+            Set<String> current = previous;
+            // Without an answer (timeout, or the connection is being restored), try again after the current interval
+            if (e == null) {
+                current = new HashSet<>(users);
+                nextInterval = current.equals(previous) ? Math.min(interval * 2, maxIntervalNanos) : minIntervalNanos;
+            }
+            long delay = nextInterval;
+            Set<String> seen = current;
+            try {
+                scheduler.schedule(() -> poll(scheduler, delay, seen, stopped), delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException shutDown) {
+                stopped.complete(null);
+            }
+        });
+    }
+}
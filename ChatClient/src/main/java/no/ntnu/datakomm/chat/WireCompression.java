@@ -0,0 +1,50 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed wire mode of the chat protocol. A server that supports it lists "deflate" in its supported
+ * commands. The client sends "deflate" and compresses everything it sends after that line; the server answers
+ * "deflateok" and compresses everything it sends after that line. Both directions are one raw DEFLATE stream for
+ * the rest of the connection, primed with a dictionary of common protocol words, and sync-flushed after every
+ * batch of lines so the other side can decode them right away.
+ */
+public final class WireCompression {
+    /**
+     * The command that starts compression, and the word servers list in their supported commands
+     */
+    public static final String COMMAND = "deflate";
+    /**
+     * The server's answer, the last line it sends uncompressed
+     */
+    public static final String RESPONSE = "deflateok";
+
+    // Strings that are likely to occur on the wire. DEFLATE finds matches in the dictionary as if it had been sent
+    // just before the stream started, so the first lines compress well too. The most common ones come last.
+    private static final byte[] DICTIONARY = ("cmderr command not supported msgerr incorrect recipient "
+            + "loginerr username already in use loginok help joke presence on supported deflate "
+            + "userleave userjoin users login msgok 1\nmsgok 0\nprivmsg msg ").getBytes(StandardCharsets.UTF_8);
+
+    private WireCompression() {
+    }
+
+    /**
+     * @return A compressor for the sending side of a connection
+     */
+    public static Deflater newDeflater() {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    /**
+     * @return A decompressor for the receiving side of a connection
+     */
+    public static Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+}
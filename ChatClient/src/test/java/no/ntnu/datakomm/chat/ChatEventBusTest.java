@@ -0,0 +1,111 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChatEventBusTest {
+
+    /**
+     * Test that every event reaches the subscriber, in order, on the subscriber's executor
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testDeliveryInOrder() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ChatEventBus bus = new ChatEventBus(16, ChatEventBus.OverflowPolicy.BLOCK);
+        List<String> received = new ArrayList<>();
+        bus.subscribe(new DummyMsgReceiver() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                received.add(message.getText());
+            }
+        }, executor);
+
+        for (int i = 0; i < 1000; i++) {
+            bus.onMessageReceived(new TextMessage("a", false, Integer.toString(i)));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1000, received.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.toString(i), received.get(i));
+        }
+        assertEquals(0, bus.getDroppedCount());
+    }
+
+    /**
+     * Test that events are still delivered when the executor rejects the drain task, instead of staying buffered
+     */
+    @Test
+    public void testRejectedExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        ChatEventBus bus = new ChatEventBus(16, ChatEventBus.OverflowPolicy.DROP_OLDEST);
+        List<String> received = new ArrayList<>();
+        bus.subscribe(new DummyMsgReceiver() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                received.add(message.getText());
+            }
+        }, executor);
+
+        bus.onMessageReceived(new TextMessage("a", false, "first"));
+        bus.onMessageReceived(new TextMessage("a", false, "second"));
+        assertEquals(List.of("first", "second"), received);
+        assertEquals(0, bus.getDroppedCount());
+    }
+
+    /**
+     * Test that a blocked subscriber does not block the publishing thread, and only the newest events are kept
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        List<Runnable> tasks = new ArrayList<>();
+        ChatEventBus bus = new ChatEventBus(4, ChatEventBus.OverflowPolicy.DROP_OLDEST);
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        // An executor that does not run anything until we say so: a stuck subscriber
+        bus.subscribe(receiver, tasks::add);
+
+        for (int i = 0; i < 10; i++) {
+            bus.onMessageReceived(new TextMessage("a", false, Integer.toString(i)));
+        }
+        assertEquals(6, bus.getDroppedCount());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertFalse(receiver.hasReceived(new TextMessage("a", false, "5")));
+        assertTrue(receiver.hasReceived(new TextMessage("a", false, "6")));
+        assertTrue(receiver.hasReceived(new TextMessage("a", false, "9")));
+    }
+
+    /**
+     * Test that user listings waiting for a slow subscriber are replaced by the newest one
+     */
+    @Test
+    public void testCoalesce() {
+        List<Runnable> tasks = new ArrayList<>();
+        ChatEventBus bus = new ChatEventBus(4, ChatEventBus.OverflowPolicy.COALESCE);
+        DummyUserListingReceiver receiver = new DummyUserListingReceiver();
+        bus.subscribe(receiver, tasks::add);
+
+        bus.onUserList(new String[]{"old"});
+        bus.onUserList(new String[]{"older"});
+        bus.onUserList(new String[]{"new", "newer"});
+        assertEquals(0, bus.getDroppedCount());
+        tasks.get(0).run();
+        assertEquals(2, receiver.getCount());
+        assertFalse(receiver.contains("old"));
+        assertTrue(receiver.contains("newer"));
+    }
+}
@@ -0,0 +1,172 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClientMetricsTest {
+    // How many seconds to wait at most for a server response to arrive
+    private static final int RESPONSE_TIMEOUT = 5;
+
+    private ChatServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ChatServer(0);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Test that traffic, listener and request metrics are recorded, and that a later snapshot minus an earlier one
+     * gives what happened in between
+     *
+     * @throws Exception When a response does not arrive in time
+     */
+    @Test
+    public void testTrafficMetrics() throws Exception {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        assertTrue(sender.connect(server.getHost(), server.getPort()));
+        assertTrue(receiver.connect(server.getHost(), server.getPort()));
+        sender.startListenThread();
+        receiver.startListenThread();
+        DummyMsgReceiver messages = new DummyMsgReceiver();
+        receiver.addListener(messages);
+        assertTrue(sender.login("metricsA").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).isSuccess());
+        assertTrue(receiver.login("metricsB").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).isSuccess());
+        MetricsSnapshot before = receiver.getMetrics().snapshot();
+
+        CountDownLatch hello = messages.expect(new TextMessage("metricsA", false, "hello"));
+        sender.users().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+        sender.sendPublicMessage("hello").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+        sender.users().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(hello.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+
+        MetricsSnapshot senderMetrics = sender.getMetrics().snapshot();
+        assertEquals(4, senderMetrics.getLinesOut());
+        assertEquals("login metricsA\nusers\nmsg hello\nusers\n".length(), senderMetrics.getBytesOut());
+        assertEquals(Long.valueOf(2), senderMetrics.getCommandsOut().get("users"));
+        assertEquals(Long.valueOf(1), senderMetrics.getCommandsIn().get("loginok"));
+        assertEquals(Long.valueOf(2), senderMetrics.getCommandsIn().get("users"));
+        assertEquals(1, senderMetrics.getResponseTime().get("login").getCount());
+        assertEquals(2, senderMetrics.getResponseTime().get("users").getCount());
+        assertTrue(senderMetrics.getParseTime().getCount() > 0);
+        assertEquals(0, senderMetrics.getOutboundQueueDepth());
+
+        // The dispatch time is recorded just after the listener returns
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT);
+        MetricsSnapshot received;
+        do {
+            received = receiver.getMetrics().snapshot().minus(before);
+        } while (received.getDispatchTime().values().iterator().next().getCount() == 0
+                && System.nanoTime() < deadline);
+        assertEquals(Long.valueOf(1), received.getCommandsIn().get("msg"));
+        assertEquals(1, received.getDispatchTime().size());
+        assertEquals(1, received.getDispatchTime().values().iterator().next().getCount());
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * Test that the metrics can be read through JMX
+     *
+     * @throws Exception When JMX fails
+     */
+    @Test
+    public void testJmx() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        client.users().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+
+        ObjectName name = client.getMetrics().registerMBean("test");
+        try {
+            Object bytesOut = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesOut");
+            assertEquals((long) "users\n".length(), bytesOut);
+            assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ResponseTime"));
+        } finally {
+            client.getMetrics().unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        client.disconnect();
+    }
+
+    /**
+     * Test the percentiles of the histogram
+     */
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        // Values are exact up to 16, and within 1/16 above that
+        assertEquals(500, snapshot.getMedian(), 500 / 16.0);
+        assertEquals(990, snapshot.getP99(), 990 / 16.0);
+        assertTrue(snapshot.getMax() >= 1000);
+        histogram.record(5);
+        assertEquals(5, histogram.snapshot().minus(snapshot).getMax());
+    }
+
+    /**
+     * Test that no dispatch time is kept for a listener once it is removed, even if an event for it is still being
+     * dispatched
+     */
+    @Test
+    public void testRemovedListener() {
+        TCPClient client = new TCPClient();
+        ClientMetrics metrics = client.getMetrics();
+        ChatListener listener = new EmptyChatListener();
+        client.addListener(listener);
+        assertEquals(1, metrics.getDispatchTime().size());
+        metrics.dispatched(listener, System.nanoTime());
+        assertEquals(1, metrics.getDispatchTime().values().iterator().next().getCount());
+
+        client.removeListener(listener);
+        assertTrue(metrics.getDispatchTime().isEmpty());
+        // An event dispatched to a snapshot of the listeners taken before the removal
+        metrics.dispatched(listener, System.nanoTime());
+        assertTrue(metrics.getDispatchTime().isEmpty());
+    }
+
+    /**
+     * Test that received command words beyond the most counted separately are counted together
+     */
+    @Test
+    public void testCommandWordOverflow() {
+        ClientMetrics metrics = new ClientMetrics();
+        for (int i = 0; i < 100; i++) {
+            byte[] line = ("word" + i + " text").getBytes(StandardCharsets.UTF_8);
+            int wordEnd = line.length - " text".length();
+            metrics.lineReceived(line, 0, wordEnd, i);
+            metrics.lineReceived(line, 0, wordEnd, i);
+        }
+        Map<String, Long> commands = metrics.getCommandsIn();
+        assertEquals(65, commands.size());
+        assertEquals(Long.valueOf(2), commands.get("word0"));
+        assertEquals(Long.valueOf(2), commands.get("word63"));
+        assertNull(commands.get("word64"));
+        assertEquals(Long.valueOf(72), commands.get("(other)"));
+    }
+}
@@ -0,0 +1,164 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandDecoderTest {
+
+    /**
+     * Feed a string to the decoder, as if it was received from the server
+     */
+    private static void feed(CommandDecoder decoder, String data) {
+        decoder.decode(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Test that public and private messages are decoded into the right TextMessage
+     */
+    @Test
+    public void testMessages() {
+        TCPClient client = new TCPClient();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        client.addListener(receiver);
+        CommandDecoder decoder = new CommandDecoder(client.getCommandRegistry());
+
+        feed(decoder, "msg alice Hello there, all of you\nprivmsg bob Psst æøå\r\n");
+        assertTrue(receiver.hasReceived(new TextMessage("alice", false, "Hello there, all of you")));
+        assertTrue(receiver.hasReceived(new TextMessage("bob", true, "Psst æøå")));
+    }
+
+    /**
+     * Test that messages from the same sender share one sender String
+     */
+    @Test
+    public void testSenderNamesShared() {
+        TCPClient client = new TCPClient();
+        List<TextMessage> received = new ArrayList<>();
+        client.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                received.add(message);
+            }
+        });
+        CommandDecoder decoder = new CommandDecoder(client.getCommandRegistry());
+
+        feed(decoder, "msg dave first\nprivmsg dave second\n");
+        feed(decoder, "msg dave third\n");
+        assertEquals(3, received.size());
+        assertEquals("dave", received.get(0).getSender());
+        assertSame(received.get(0).getSender(), received.get(1).getSender());
+        assertSame(received.get(0).getSender(), received.get(2).getSender());
+    }
+
+    /**
+     * Test that a line split over several reads is decoded once it is complete
+     */
+    @Test
+    public void testLineSplitAcrossReads() {
+        TCPClient client = new TCPClient();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        client.addListener(receiver);
+        CommandDecoder decoder = new CommandDecoder(client.getCommandRegistry());
+
+        TextMessage expected = new TextMessage("carol", false, "one two three");
+        feed(decoder, "msg car");
+        assertFalse(receiver.hasReceived(expected));
+        feed(decoder, "ol one two");
+        assertFalse(receiver.hasReceived(expected));
+        feed(decoder, " three\nmsg");
+        assertTrue(receiver.hasReceived(expected));
+    }
+
+    /**
+     * Test the switch to binary frames in the middle of a read, a frame split byte by byte, and that frames of
+     * unknown types are skipped
+     */
+    @Test
+    public void testBinaryFrames() {
+        TCPClient client = new TCPClient();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        client.addListener(receiver);
+        CommandDecoder decoder = new CommandDecoder(client.getCommandRegistry());
+
+        ByteBuffer first = frame("msg alice two\nlines");
+        ByteBuffer second = frame("privmsg bob " + "long ".repeat(100));
+        ByteBuffer input = ByteBuffer.allocate(100 + first.remaining() + second.remaining());
+        input.put("msg carol before\nbinaryok\n".getBytes(StandardCharsets.UTF_8));
+        input.put(first);
+        // Type 99, length 3
+        input.put(new byte[]{99, 3, 'x', 'y', 'z'});
+        input.put(second.get());
+        decoder.decode(input.flip());
+        assertTrue(receiver.hasReceived(new TextMessage("carol", false, "before")));
+        assertTrue(receiver.hasReceived(new TextMessage("alice", false, "two\nlines")));
+
+        TextMessage expected = new TextMessage("bob", true, "long ".repeat(100));
+        while (second.hasRemaining()) {
+            assertFalse(receiver.hasReceived(expected));
+            decoder.decode(ByteBuffer.wrap(new byte[]{second.get()}));
+        }
+        assertTrue(receiver.hasReceived(expected));
+    }
+
+    private static ByteBuffer frame(String command) {
+        return BinaryFraming.frame(StandardCharsets.UTF_8.encode(command));
+    }
+
+    /**
+     * Test the user listing and the response codes
+     */
+    @Test
+    public void testUsersAndResponses() {
+        TCPClient client = new TCPClient();
+        DummyUserListingReceiver users = new DummyUserListingReceiver();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(users);
+        client.addListener(counter);
+        CommandDecoder decoder = new CommandDecoder(client.getCommandRegistry());
+
+        feed(decoder, "users a  bb ccc\nloginok\nloginerr username already in use\nmsgerr no such user\n"
+                + "cmderr command not supported\nsupported msg users\nunknowncommand\n");
+        assertEquals(3, users.getCount());
+        assertTrue(users.contains("bb"));
+        assertFalse(users.contains(""));
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(1, counter.loginError);
+        assertEquals(1, counter.msgErr);
+        assertEquals(1, counter.cmdErr);
+        assertEquals(1, counter.supported);
+        assertEquals(1, counter.userList);
+    }
+
+    /**
+     * Test that an application can add a handler for an extra server command and replace a built-in one
+     */
+    @Test
+    public void testCustomHandler() {
+        TCPClient client = new TCPClient();
+        StringBuilder jokes = new StringBuilder();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        CommandRegistry registry = client.getCommandRegistry();
+        assertNull(registry.register("joke", line -> jokes.append(line.arguments())));
+        assertNotNull(registry.register("cmderr", line -> jokes.append('!')));
+        CommandDecoder decoder = new CommandDecoder(registry);
+
+        feed(decoder, "joke Why did the chicken cross the road?\ncmderr nope\njokes not a joke\n");
+        assertEquals("Why did the chicken cross the road?!", jokes.toString());
+        assertEquals(0, counter.cmdErr);
+
+        registry.unregister("joke");
+        feed(decoder, "joke Another one\n");
+        assertEquals("Why did the chicken cross the road?!", jokes.toString());
+    }
+}
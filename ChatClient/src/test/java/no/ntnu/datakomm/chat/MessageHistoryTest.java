@@ -0,0 +1,134 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+
+    private static ChatEntry entry(int i) {
+        return new ChatEntry(ChatEntry.Kind.RECEIVED, new TextMessage("user" + i, i % 2 == 0, "Message " + i));
+    }
+
+    /**
+     * Test that the list stays bounded, and that paged-out entries come back in order, newest page first
+     *
+     * @throws Exception When the page file can not be used
+     */
+    @Test
+    public void testPageOutAndLoadBack() throws Exception {
+        List<ChatEntry> items = new ArrayList<>();
+        try (MessageHistory history = new MessageHistory(items, 10, 5)) {
+            for (int i = 0; i < 42; i++) {
+                history.add(entry(i));
+                assertTrue(items.size() < 15);
+            }
+            // 30 paged out in 6 pages, 12 left in memory
+            assertEquals(30, history.getPagedOutCount());
+            assertEquals(12, items.size());
+            assertEquals("Message 30", items.get(0).getMessage().getText());
+
+            assertEquals(5, history.loadOlder());
+            assertEquals("Message 25", items.get(0).getMessage().getText());
+            assertEquals("Message 30", items.get(5).getMessage().getText());
+            while (history.hasOlder()) {
+                history.loadOlder();
+            }
+            assertEquals(42, items.size());
+            for (int i = 0; i < 42; i++) {
+                TextMessage message = items.get(i).getMessage();
+                assertEquals("Message " + i, message.getText());
+                assertEquals("user" + i, message.getSender());
+                assertEquals(i % 2 == 0, message.isPrivate());
+            }
+
+            // Nothing is paged out while older pages are shown
+            history.add(entry(42));
+            assertEquals(43, items.size());
+            history.releaseOlder();
+            assertEquals("Message 42", items.get(items.size() - 1).getMessage().getText());
+            assertTrue(items.size() < 15);
+            assertTrue(history.hasOlder());
+        }
+    }
+
+    /**
+     * Test that new entries are held back on disk while older pages are loaded, so the list stays bounded, and that
+     * they are shown in order after releaseOlder()
+     *
+     * @throws Exception When the page file can not be used
+     */
+    @Test
+    public void testHoldBackWhileOlderLoaded() throws Exception {
+        List<ChatEntry> items = new ArrayList<>();
+        try (MessageHistory history = new MessageHistory(items, 10, 5)) {
+            for (int i = 0; i < 42; i++) {
+                history.add(entry(i));
+            }
+            assertEquals(5, history.loadOlder());
+            assertEquals(17, items.size());
+
+            // The front stays as it is, and the list does not grow past the loaded page plus cap and page
+            for (int i = 42; i < 142; i++) {
+                history.add(entry(i));
+                assertTrue(items.size() <= 5 + 10 + 5);
+                assertEquals("Message 25", items.get(0).getMessage().getText());
+            }
+            assertTrue(history.hasNewer());
+            assertEquals("Message 44", items.get(items.size() - 1).getMessage().getText());
+
+            history.releaseOlder();
+            assertFalse(history.hasNewer());
+            assertTrue(items.size() < 15);
+            assertEquals("Message 141", items.get(items.size() - 1).getMessage().getText());
+
+            // Everything is still there, in order
+            while (history.hasOlder()) {
+                history.loadOlder();
+            }
+            assertEquals(142, items.size());
+            for (int i = 0; i < 142; i++) {
+                assertEquals("Message " + i, items.get(i).getMessage().getText());
+            }
+        }
+    }
+
+    /**
+     * Test that inserted entries go after the loaded older pages, and that the list stays bounded
+     *
+     * @throws Exception When the page file can not be used
+     */
+    @Test
+    public void testInsert() throws Exception {
+        List<ChatEntry> items = new ArrayList<>();
+        try (MessageHistory history = new MessageHistory(items, 10, 5)) {
+            for (int i = 20; i < 30; i++) {
+                history.add(entry(i));
+            }
+            List<ChatEntry> logged = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                logged.add(entry(i));
+            }
+            history.insert(0, logged);
+            assertTrue(items.size() < 15);
+            assertEquals("Message 29", items.get(items.size() - 1).getMessage().getText());
+
+            assertEquals(5, history.loadOlder());
+            String firstLoaded = items.get(0).getMessage().getText();
+            history.insert(0, List.of(entry(99)));
+            assertEquals(firstLoaded, items.get(0).getMessage().getText());
+            assertEquals("Message 99", items.get(5).getMessage().getText());
+
+            history.releaseOlder();
+            while (history.hasOlder()) {
+                history.loadOlder();
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("Message " + i, items.get(i).getMessage().getText());
+            }
+        }
+    }
+}
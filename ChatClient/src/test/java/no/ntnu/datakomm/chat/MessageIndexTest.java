@@ -0,0 +1,81 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageIndexTest {
+
+    /**
+     * Test word, sender and private/public queries, and that results come newest first
+     */
+    @Test
+    public void testSearch() {
+        MessageIndex index = new MessageIndex();
+        index.onMessageReceived(new TextMessage("alice", false, "The server is down again!"));
+        index.onMessageReceived(new TextMessage("bob", true, "Is the server down? Server, server..."));
+        index.onMessageReceived(new TextMessage("alice", true, "Lunch at noon"));
+        index.onMessageReceived(new TextMessage("carol", false, "server back UP"));
+        assertEquals(4, index.size());
+
+        List<TextMessage> results = index.search("SERVER", null, null, 10);
+        assertEquals(3, results.size());
+        assertEquals("carol", results.get(0).getSender());
+        assertEquals("alice", results.get(2).getSender());
+
+        assertEquals(2, index.search("server down", null, null, 10).size());
+        assertEquals(1, index.search("server down", "bob", null, 10).size());
+        assertEquals(1, index.search("server", null, true, 10).size());
+        assertEquals(2, index.search("server", null, false, 10).size());
+        assertEquals(2, index.search("", "alice", null, 10).size());
+        assertEquals(1, index.search("server", null, null, 1).size());
+        assertTrue(index.search("server nothing", null, null, 10).isEmpty());
+        assertTrue(index.search("lunch", "nobody", null, 10).isEmpty());
+    }
+
+    /**
+     * Test that only the newest messages are kept, and that the oldest drop out of word and sender queries
+     */
+    @Test
+    public void testCapacity() {
+        MessageIndex index = new MessageIndex(3);
+        index.add(new TextMessage("alice", false, "first message, the message"));
+        index.add(new TextMessage("bob", false, "second message"));
+        index.add(new TextMessage("alice", true, "third message"));
+        assertEquals(3, index.size());
+        assertEquals(3, index.search("message", null, null, 10).size());
+
+        index.add(new TextMessage("carol", false, "fourth message"));
+        assertEquals(3, index.size());
+        List<TextMessage> results = index.search("message", null, null, 10);
+        assertEquals(3, results.size());
+        assertEquals("fourth message", results.get(0).getText());
+        assertEquals("second message", results.get(2).getText());
+        assertTrue(index.search("first", null, null, 10).isEmpty());
+        assertEquals(1, index.search("", "alice", null, 10).size());
+        assertEquals(3, index.search("", null, null, 10).size());
+
+        // Many more, so the posting lists wrap around
+        for (int i = 0; i < 100; i++) {
+            index.add(new TextMessage("dave", i % 2 == 0, "number " + i));
+        }
+        assertEquals(3, index.size());
+        results = index.search("number", "dave", null, 10);
+        assertEquals(3, results.size());
+        assertEquals("number 99", results.get(0).getText());
+        assertEquals("number 97", results.get(2).getText());
+        assertEquals(1, index.search("number", null, true, 10).size());
+        assertTrue(index.search("", "carol", null, 10).isEmpty());
+    }
+
+    /**
+     * Test that text is split into lower-case words at punctuation and spaces
+     */
+    @Test
+    public void testTokenize() {
+        assertEquals(List.of("hello", "wörld", "42"), MessageIndex.tokenize("  Hello, WÖRLD!42"));
+        assertTrue(MessageIndex.tokenize("?!").isEmpty());
+    }
+}
@@ -0,0 +1,147 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("message-log-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static List<LoggedMessage> readAll(Path directory) throws IOException {
+        List<LoggedMessage> messages = new ArrayList<>();
+        new MessageLogReader(directory).replay(messages::add);
+        return messages;
+    }
+
+    /**
+     * Test that messages written over several segments are read back in order, with all their fields
+     *
+     * @throws IOException When the log can not be used
+     */
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        try (MessageLog log = new MessageLog(directory, 1024)) {
+            for (int i = 0; i < 500; i++) {
+                log.append(1000 + i, new TextMessage("user" + (i % 7), i % 3 == 0, "Message number " + i + " æøå"));
+            }
+        }
+        assertTrue(MessageLog.listSegments(directory).size() > 1);
+
+        List<LoggedMessage> messages = readAll(directory);
+        assertEquals(500, messages.size());
+        for (int i = 0; i < 500; i++) {
+            LoggedMessage m = messages.get(i);
+            assertEquals(1000 + i, m.getTimestamp());
+            assertEquals(new TextMessage("user" + (i % 7), i % 3 == 0, "Message number " + i + " æøå"),
+                    m.getMessage());
+        }
+    }
+
+    /**
+     * Test that a record torn by a crash is ignored, and that appending after reopening continues before it
+     *
+     * @throws IOException When the log can not be used
+     */
+    @Test
+    public void testRecoveryAfterTornRecord() throws IOException {
+        int end;
+        try (MessageLog log = new MessageLog(directory, 4096)) {
+            log.append(1, new TextMessage("a", false, "first"));
+            log.append(2, new TextMessage("b", true, "second"));
+            end = log.getPosition();
+        }
+        // A record whose length was written but whose payload does not match the checksum
+        Path segment = MessageLog.listSegments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(20);
+            torn.putInt(12).putInt(12345).putLong(99).putInt(7).flip();
+            channel.write(torn, end);
+        }
+        assertEquals(2, readAll(directory).size());
+
+        try (MessageLog log = new MessageLog(directory, 4096)) {
+            assertEquals(end, log.getPosition());
+            log.onMessageReceived(new TextMessage("c", false, "third"));
+        }
+        List<LoggedMessage> messages = readAll(directory);
+        assertEquals(3, messages.size());
+        assertEquals("third", messages.get(2).getMessage().getText());
+    }
+
+    /**
+     * Test that a second log can not append to a directory while the first one is open, and can after it is closed
+     *
+     * @throws IOException When the log can not be used
+     */
+    @Test
+    public void testSingleWriter() throws IOException {
+        try (MessageLog log = new MessageLog(directory, 4096)) {
+            log.append(1, new TextMessage("a", false, "first"));
+            assertNull(MessageLog.tryOpen(directory));
+            try {
+                new MessageLog(directory, 4096).close();
+                fail("A second writer was allowed");
+            } catch (IOException e) {
+                // Expected
+            }
+            log.append(2, new TextMessage("b", false, "second"));
+        }
+        try (MessageLog log = MessageLog.tryOpen(directory)) {
+            assertNotNull(log);
+            log.append(3, new TextMessage("c", false, "third"));
+        }
+        List<LoggedMessage> messages = readAll(directory);
+        assertEquals(3, messages.size());
+        assertEquals("third", messages.get(2).getMessage().getText());
+    }
+
+    /**
+     * Test that a reader taken from an open log only reads the records appended before, also when later records
+     * start new segments
+     *
+     * @throws IOException When the log can not be used
+     */
+    @Test
+    public void testReaderOfAppendedSoFar() throws IOException {
+        try (MessageLog log = new MessageLog(directory, 1024)) {
+            for (int i = 0; i < 30; i++) {
+                log.append(i, new TextMessage("user", false, "Before " + i));
+            }
+            MessageLogReader reader = log.reader();
+            for (int i = 0; i < 100; i++) {
+                log.append(i, new TextMessage("user", false, "After " + i));
+            }
+            assertTrue(MessageLog.listSegments(directory).size() > 1);
+
+            List<LoggedMessage> messages = new ArrayList<>();
+            assertEquals(30, reader.replay(messages::add));
+            assertEquals("Before 29", messages.get(29).getMessage().getText());
+            assertEquals(130, readAll(directory).size());
+        }
+    }
+}
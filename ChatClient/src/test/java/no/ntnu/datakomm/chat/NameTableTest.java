@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class NameTableTest {
+
+    private static String intern(NameTable names, String line, int start, int end) {
+        return names.intern(line.getBytes(StandardCharsets.UTF_8), start, end);
+    }
+
+    /**
+     * Test that a name found in the table is the same String every time, wherever it is in the buffer
+     */
+    @Test
+    public void testSameInstance() {
+        NameTable names = new NameTable(16);
+        String first = intern(names, "msg alice hello", 4, 9);
+        assertEquals("alice", first);
+        assertSame(first, intern(names, "privmsg alice hi", 8, 13));
+        assertEquals("bob", intern(names, "bob", 0, 3));
+        assertSame(first, intern(names, "alice", 0, 5));
+        assertEquals("æøå", intern(names, "æøå", 0, 6));
+    }
+
+    /**
+     * Test that the table does not grow past its capacity, and that long names are not kept
+     */
+    @Test
+    public void testBounded() {
+        NameTable names = new NameTable(64);
+        for (int i = 0; i < 10000; i++) {
+            String name = "user" + i;
+            assertEquals(name, intern(names, name, 0, name.length()));
+        }
+        assertTrue(names.size() <= 64);
+
+        NameTable empty = new NameTable(8);
+        String longName = "x".repeat(NameTable.MAX_NAME_BYTES + 1);
+        assertEquals(longName, intern(empty, longName, 0, longName.length()));
+        assertEquals(0, empty.size());
+    }
+
+    /**
+     * Test that threads sharing the table always get the right names
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        NameTable names = new NameTable(8);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        String name = "user" + (i % 20);
+                        if (!name.equals(intern(names, name, 0, name.length()))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
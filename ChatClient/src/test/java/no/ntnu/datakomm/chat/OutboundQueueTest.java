@@ -0,0 +1,159 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    /**
+     * A channel that records what is written to it, accepting at most a given number of bytes per write
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int writeCalls = 0;
+        int limit = Integer.MAX_VALUE;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writeCalls++;
+            int total = 0;
+            for (int i = offset; i < offset + length && total < limit; i++) {
+                while (srcs[i].hasRemaining() && total < limit) {
+                    written.write(srcs[i].get());
+                    total++;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        String text() {
+            return written.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Test that queued commands are written with one gathering write, and their futures complete
+     */
+    @Test
+    public void testBatching() throws IOException {
+        ClientMetrics metrics = new ClientMetrics();
+        OutboundQueue queue = new OutboundQueue(metrics);
+        RecordingChannel channel = new RecordingChannel();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(queue.add("msg " + i));
+        }
+        assertEquals(10, queue.size());
+        assertFalse(futures.get(0).isDone());
+
+        assertTrue(queue.flush(channel));
+        assertEquals(1, channel.writeCalls);
+        assertTrue(channel.text().startsWith("msg 0\nmsg 1\n"));
+        assertTrue(channel.text().endsWith("msg 9\n"));
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(10, metrics.getLinesOut());
+        assertEquals(channel.written.size(), metrics.getBytesOut());
+    }
+
+    /**
+     * Test that a partial write completes only the commands written completely, and the rest follows later
+     */
+    @Test
+    public void testPartialWrite() throws IOException {
+        OutboundQueue queue = new OutboundQueue(new ClientMetrics());
+        RecordingChannel channel = new RecordingChannel();
+        channel.limit = 7;
+        CompletableFuture<Void> first = queue.add("msg a");
+        CompletableFuture<Void> second = queue.add("msg b");
+
+        assertFalse(queue.flush(channel));
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertFalse(queue.isEmpty());
+
+        channel.limit = Integer.MAX_VALUE;
+        assertTrue(queue.flush(channel));
+        assertTrue(second.isDone());
+        assertEquals("msg a\nmsg b\n", channel.text());
+    }
+
+    /**
+     * Test that failAll() fails the commands of a half-written batch and those still queued
+     */
+    @Test
+    public void testFailAll() throws Exception {
+        OutboundQueue queue = new OutboundQueue(new ClientMetrics());
+        RecordingChannel channel = new RecordingChannel();
+        channel.limit = 3;
+        CompletableFuture<Void> inBatch = queue.add("msg a");
+        assertFalse(queue.flush(channel));
+        CompletableFuture<Void> queued = queue.add("msg b");
+
+        IOException cause = new IOException("Connection closed");
+        queue.failAll(cause);
+        for (CompletableFuture<Void> future : List.of(inBatch, queued)) {
+            try {
+                future.get();
+                fail("The write should have failed");
+            } catch (ExecutionException e) {
+                assertSame(cause, e.getCause());
+            }
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Test that drainUnsent() hands out the unwritten commands oldest first, with their futures pending, and
+     * skips wake-up markers
+     */
+    @Test
+    public void testDrainUnsent() throws IOException {
+        OutboundQueue queue = new OutboundQueue(new ClientMetrics());
+        RecordingChannel channel = new RecordingChannel();
+        channel.limit = 3;
+        queue.add("msg a");
+        assertFalse(queue.flush(channel));
+        queue.wakeUp();
+        queue.add("msg b");
+
+        List<OutboundQueue.PendingWrite> unsent = queue.drainUnsent();
+        assertEquals(2, unsent.size());
+        assertEquals("msg a", unsent.get(0).command);
+        assertEquals("msg b", unsent.get(1).command);
+        assertFalse(unsent.get(0).future.isDone());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+    // How many seconds to wait at most for a server response to arrive
+    private static final int RESPONSE_TIMEOUT = 5;
+
+    private ChatServer serverA;
+    private ChatServer serverB;
+    private SessionManager manager;
+
+    @Before
+    public void start() throws IOException {
+        serverA = new ChatServer(0);
+        serverA.start();
+        serverB = new ChatServer(0);
+        serverB.start();
+        manager = new SessionManager(1, 2);
+    }
+
+    @After
+    public void stop() {
+        manager.close();
+        serverA.close();
+        serverB.close();
+    }
+
+    /**
+     * Test that sessions to different servers only get their own events
+     *
+     * @throws Exception When a response does not arrive in time
+     */
+    @Test
+    public void testListenerScope() throws Exception {
+        SessionManager.Session a = manager.openSession();
+        SessionManager.Session b = manager.openSession();
+        DummyMsgReceiver receivedA = new DummyMsgReceiver();
+        DummyMsgReceiver receivedB = new DummyMsgReceiver();
+        a.addListener(receivedA);
+        b.addListener(receivedB);
+        assertTrue(a.connect(serverA.getHost(), serverA.getPort()).get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(b.connect(serverB.getHost(), serverB.getPort()).get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(a.getClient().login("sessionA").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).isSuccess());
+        // The same username is free on the other server
+        assertTrue(b.getClient().login("sessionA").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).isSuccess());
+
+        CountDownLatch toA = receivedA.expect(new TextMessage("sessionA", true, "only A"));
+        CountDownLatch toB = receivedB.expect(new TextMessage("sessionA", true, "only B"));
+        a.getClient().sendPrivateMessage("sessionA", "only A");
+        b.getClient().sendPrivateMessage("sessionA", "only B");
+        assertTrue(toA.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(toB.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertFalse(receivedA.hasReceived(new TextMessage("sessionA", true, "only B")));
+        assertFalse(receivedB.hasReceived(new TextMessage("sessionA", true, "only A")));
+
+        a.close();
+        assertEquals(List.of(b), manager.getSessions());
+        assertFalse(a.getClient().isConnectionActive());
+    }
+
+    /**
+     * Test that a slow lossless listener gets every message, on a dispatch thread and not on the I/O thread
+     *
+     * @throws Exception When a response does not arrive in time
+     */
+    @Test
+    public void testLosslessListener() throws Exception {
+        SessionManager.Session session = manager.openSession();
+        List<String> texts = new ArrayList<>();
+        List<String> threads = new ArrayList<>();
+        CountDownLatch all = new CountDownLatch(200);
+        session.addLosslessListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                texts.add(message.getText());
+                threads.add(Thread.currentThread().getName());
+                if (texts.size() % 50 == 0) {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                all.countDown();
+            }
+        });
+        assertTrue(session.connect(serverA.getHost(), serverA.getPort()).get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(session.getClient().login("lossless").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).isSuccess());
+        for (int i = 0; i < 200; i++) {
+            session.getClient().sendPrivateMessage("lossless", "Message " + i);
+        }
+        assertTrue(all.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        for (int i = 0; i < 200; i++) {
+            assertEquals("Message " + i, texts.get(i));
+            assertTrue(threads.get(i).startsWith("session-dispatch-"));
+        }
+    }
+
+    /**
+     * Test that the number of threads does not grow with the number of sessions
+     *
+     * @throws Exception When a response does not arrive in time
+     */
+    @Test
+    public void testFixedThreads() throws Exception {
+        long threadsBefore = countSessionThreads();
+        List<SessionManager.Session> sessions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            SessionManager.Session session = manager.openSession();
+            assertTrue(session.connect(serverA.getHost(), serverA.getPort()).get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            sessions.add(session);
+        }
+        for (int i = 0; i < sessions.size(); i++) {
+            assertTrue(sessions.get(i).getClient().login("many" + i).get(RESPONSE_TIMEOUT, TimeUnit.SECONDS)
+                    .isSuccess());
+        }
+        // Threads of managers closed by earlier tests may still be ending, so there can be fewer, but not more
+        assertTrue(countSessionThreads() <= threadsBefore);
+    }
+
+    private static long countSessionThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("session-"))
+                .count();
+    }
+}
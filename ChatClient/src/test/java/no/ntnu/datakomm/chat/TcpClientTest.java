@@ -4,17 +4,42 @@ import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
 import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
 import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
 import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class TcpClientTest {
-    // Host and port to be used for all connection in the tests
-    private static final String SERVER_HOST = "datakomm.work";
-    private static final int SERVER_PORT = 1300;
+    // How many seconds to wait at most for a server response to arrive
+    private static final int RESPONSE_TIMEOUT = 5;
+
+    // An in-process chat server, started on a free port for every test
+    private ChatServer server;
+    private String SERVER_HOST;
+    private int SERVER_PORT;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ChatServer(0);
+        server.start();
+        SERVER_HOST = server.getHost();
+        SERVER_PORT = server.getPort();
+    }
 
-    // How many ms to sleep when waiting for server response to arrive
-    private static final int THREAD_SLEEP_TIME = 2000;
+    @After
+    public void stopServer() {
+        server.close();
+    }
 
     /**
      * Test if opening and closing connection works
@@ -35,10 +60,10 @@ public class TcpClientTest {
      * Test if login works correctly. Note: this test can fail if several students run the same test at the same
      * time: several clients will try to use the same username.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testLogin() throws InterruptedException {
+    public void testLogin() throws Exception {
         TCPClient client = new TCPClient();
         assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
         // The incoming messages will be received on another thread
@@ -49,10 +74,9 @@ public class TcpClientTest {
         assertEquals(0, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
-        // Try bad username
-        client.tryLogin("Bad username");
-        // allow the login response (loginerr) to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try bad username, wait for the login response (loginerr) to arrive
+        LoginResult result = client.login("Bad username").get();
+        assertFalse(result.isSuccess());
         assertEquals(0, counter.loginSuccess);
         assertEquals(1, counter.loginError);
 
@@ -61,9 +85,7 @@ public class TcpClientTest {
         counter.loginError = 0;
 
         // Try ok username with letters only
-        client.tryLogin("unittestnormal");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(client.login("unittestnormal").get().isSuccess());
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
@@ -72,9 +94,7 @@ public class TcpClientTest {
         counter.loginError = 0;
 
         // Try ok username with big and small letters
-        client.tryLogin("UnitTestCamel");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(client.login("UnitTestCamel").get().isSuccess());
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
@@ -83,9 +103,7 @@ public class TcpClientTest {
         counter.loginError = 0;
 
         // Alphanumerics
-        client.tryLogin("UnitTest35Alpha");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(client.login("UnitTest35Alpha").get().isSuccess());
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
         counter.loginSuccess = 0;
@@ -94,10 +112,31 @@ public class TcpClientTest {
         client.disconnect();
     }
 
+    /**
+     * Test that several login requests can be in flight at the same time, and each gets its own answer
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        client.startListenThread();
+
+        CompletableFuture<LoginResult> bad = client.login("Bad username");
+        CompletableFuture<LoginResult> good = client.login("UnitTestPipe" + (int) (Math.random() * 10000));
+        CompletableFuture<List<String>> supported = client.supportedCommands();
+        assertFalse(bad.get().isSuccess());
+        assertTrue(good.get().isSuccess());
+        assertTrue(supported.get().contains("msg"));
+
+        client.disconnect();
+    }
+
     /**
      * Test if sending public messages works
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testPublicMessages() throws InterruptedException {
@@ -122,14 +161,14 @@ public class TcpClientTest {
         c3.addListener(rec3);
 
         final String MSG_TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
+        TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
+        CountDownLatch received2 = rec2.expect(expectedMsg);
+        CountDownLatch received3 = rec3.expect(expectedMsg);
         c1.sendPublicMessage(MSG_TEXT);
 
-        // Allow the messages to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
-        assertTrue(rec2.hasReceived(expectedMsg));
-        assertTrue(rec3.hasReceived(expectedMsg));
+        // Wait for the messages to arrive
+        assertTrue(received2.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(received3.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
 
         // Disconnect all clients
         c1.disconnect();
@@ -137,13 +176,42 @@ public class TcpClientTest {
         c3.disconnect();
     }
 
+    /**
+     * Test that messages sent right before disconnecting are still written, also those queued while the writer
+     * was busy with earlier ones
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testSendThenDisconnect() throws Exception {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(receiver.connect(SERVER_HOST, SERVER_PORT));
+        sender.startListenThread();
+        receiver.startListenThread();
+        DummyMsgReceiver messages = new DummyMsgReceiver();
+        receiver.addListener(messages);
+        assertTrue(sender.login("lastWords").get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).isSuccess());
+
+        CountDownLatch received = messages.expect(new TextMessage("lastWords", false, "Goodbye"));
+        for (int i = 0; i < 1000; i++) {
+            sender.sendPublicMessage("Message " + i);
+        }
+        CompletableFuture<Void> sent = sender.sendPublicMessage("Goodbye");
+        sender.disconnect();
+        sent.get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(received.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        receiver.disconnect();
+    }
+
     /**
      * Test if sending private messages works.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testPrivateMessages() throws InterruptedException {
+    public void testPrivateMessages() throws Exception {
         // Create three clients. One sends message to another. Third one should not receive.
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
@@ -156,14 +224,13 @@ public class TcpClientTest {
         String C1_USERNAME = "UnitTestC1";
         String C2_USERNAME = "UnitTestC2";
         String C3_USERNAME = "UnitTestC3";
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
 
         // Clients will listen for incoming messages, each on a different CPU thread
         c1.startListenThread();
         c2.startListenThread();
         c3.startListenThread();
+        // The recipients must be logged in before anybody can send to them
+        CompletableFuture.allOf(c1.login(C1_USERNAME), c2.login(C2_USERNAME), c3.login(C3_USERNAME)).get();
         DummyMsgReceiver rec1 = new DummyMsgReceiver();
         DummyMsgReceiver rec2 = new DummyMsgReceiver();
         DummyMsgReceiver rec3 = new DummyMsgReceiver();
@@ -172,13 +239,13 @@ public class TcpClientTest {
         c3.addListener(rec3);
 
         String MSG_TEXT = "[Unittest2] This is a specific text message, please, don't repeat it!";
+        TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
+        CountDownLatch received = rec2.expect(expectedMsg);
         // Send to Client #2 only
         c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT);
 
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
+        // Wait for the message to arrive. The server has delivered it by then, so nobody else gets it later.
+        assertTrue(received.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
         assertFalse(rec1.hasReceived(expectedMsg));
         assertTrue(rec2.hasReceived(expectedMsg));
         assertFalse(rec3.hasReceived(expectedMsg));
@@ -189,15 +256,14 @@ public class TcpClientTest {
 
         // Now send from C2 to C3
         MSG_TEXT = "[Unittest3] This is a specific text message, please, don't repeat it!";
+        expectedMsg = new TextMessage(C2_USERNAME, true, MSG_TEXT);
+        received = rec3.expect(expectedMsg);
         c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT);
 
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        expectedMsg = new TextMessage(C2_USERNAME, true, MSG_TEXT);
+        // Wait for the message to arrive
+        assertTrue(received.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
         assertFalse(rec1.hasReceived(expectedMsg));
         assertFalse(rec2.hasReceived(expectedMsg));
-        assertTrue(rec3.hasReceived(expectedMsg));
 
         // Disconnect all clients
         c1.disconnect();
@@ -217,10 +283,10 @@ public class TcpClientTest {
     /**
      * Test if user listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testUserListing() throws InterruptedException {
+    public void testUserListing() throws Exception {
         // Create three clients. One sends message to another. Third one should not receive.
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
@@ -243,18 +309,14 @@ public class TcpClientTest {
         String C1_USERNAME = "UnitTestC1" + rand;
         String C2_USERNAME = "UnitTestC2" + rand;
         String C3_USERNAME = "UnitTestC3" + rand;
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
-
-        // Allow the login to happen
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        // Try to get user listing
-        c1.refreshUserList();
+        c2.startListenThread();
+        c3.startListenThread();
+        // Wait for all the logins to happen
+        CompletableFuture.allOf(c1.login(C1_USERNAME), c2.login(C2_USERNAME), c3.login(C3_USERNAME)).get();
 
-        // Allow the user listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Get user listing and wait for the response to arrive
+        List<String> users = c1.users().get();
+        assertTrue(users.contains(C1_USERNAME));
 
         // We should get all the users listed in a single message and it should contain all the three client names
         assertTrue(userListing.getCount() >= 3);
@@ -271,10 +333,10 @@ public class TcpClientTest {
     /**
      * Test if supported command listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testSupportedCommands() throws InterruptedException {
+    public void testSupportedCommands() throws Exception {
         // Create a TCP chat client.
         TCPClient c1 = new TCPClient();
         assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
@@ -286,11 +348,9 @@ public class TcpClientTest {
         DummySupportedReceiver supported = new DummySupportedReceiver();
         c1.addListener(supported);
 
-        // Try to get supported command listing
-        c1.askSupportedCommands();
-
-        // Allow the listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Get supported command listing and wait for the response to arrive
+        List<String> commands = c1.supportedCommands().get();
+        assertTrue(commands.contains("help"));
 
         // We should get all the users listed in a single message and it should contain all the three client names
         assertTrue(supported.contains("msg"));
@@ -302,4 +362,269 @@ public class TcpClientTest {
         // Disconnect all clients
         c1.disconnect();
     }
+
+    /**
+     * Test that a listener throwing an exception closes only its own connection, with the usual disconnect event,
+     * and that the event loop keeps serving the other connections.
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testFailingListener() throws Exception {
+        try (NioEventLoop eventLoop = new NioEventLoop()) {
+            TCPClient failingNio = new TCPClient(eventLoop);
+            TCPClient otherNio = new TCPClient(eventLoop);
+            TCPClient failingBlocking = new TCPClient();
+            TCPClient sender = new TCPClient();
+            CountDownLatch disconnected = new CountDownLatch(2);
+            for (TCPClient c : List.of(failingNio, failingBlocking)) {
+                c.addListener(new EmptyChatListener() {
+                    @Override
+                    public void onMessageReceived(TextMessage message) {
+                        throw new IllegalStateException("Listener bug");
+                    }
+
+                    @Override
+                    public void onDisconnect() {
+                        disconnected.countDown();
+                    }
+                });
+            }
+            for (TCPClient c : List.of(failingNio, otherNio, failingBlocking, sender)) {
+                assertTrue(c.connect(SERVER_HOST, SERVER_PORT));
+                c.startListenThread();
+            }
+
+            sender.sendPublicMessage("boom");
+            assertTrue(disconnected.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertFalse(failingNio.isConnectionActive());
+            assertFalse(failingBlocking.isConnectionActive());
+            assertTrue(eventLoop.isRunning());
+            assertTrue(otherNio.supportedCommands().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).contains("help"));
+
+            otherNio.disconnect();
+            sender.disconnect();
+        }
+    }
+
+    /**
+     * Test that messages flow the same way when the clients share a non-blocking event loop.
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testNioTransport() throws Exception {
+        try (NioEventLoop eventLoop = new NioEventLoop()) {
+            TCPClient c1 = new TCPClient(eventLoop);
+            TCPClient c2 = new TCPClient(eventLoop);
+            assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+            assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+            c1.startListenThread();
+            c2.startListenThread();
+            DummyMsgReceiver rec2 = new DummyMsgReceiver();
+            c2.addListener(rec2);
+
+            CompletableFuture.allOf(c1.login("UnitTestNio1"), c2.login("UnitTestNio2")).get();
+            TextMessage expectedMsg = new TextMessage("UnitTestNio1", true, "Sent through the event loop");
+            CountDownLatch received = rec2.expect(expectedMsg);
+            c1.sendPrivateMessage("UnitTestNio2", "Sent through the event loop");
+            assertTrue(received.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(c1.users().get().contains("UnitTestNio2"));
+
+            c1.disconnect();
+            c2.disconnect();
+        }
+    }
+
+    /**
+     * Test the compressed wire mode, with a blocking and an event loop client, together with a plain text client
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testCompression() throws Exception {
+        try (NioEventLoop eventLoop = new NioEventLoop()) {
+            TCPClient sender = new TCPClient();
+            TCPClient compressed = new TCPClient(eventLoop);
+            TCPClient plain = new TCPClient();
+            for (TCPClient c : List.of(sender, compressed, plain)) {
+                assertTrue(c.connect(SERVER_HOST, SERVER_PORT));
+                c.startListenThread();
+            }
+            DummyMsgReceiver compressedReceiver = new DummyMsgReceiver();
+            DummyMsgReceiver plainReceiver = new DummyMsgReceiver();
+            compressed.addListener(compressedReceiver);
+            plain.addListener(plainReceiver);
+            assertTrue(sender.enableCompression().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(compressed.enableCompression().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            CompletableFuture.allOf(sender.login("UnitTestZip"), compressed.login("UnitTestZip2"),
+                    plain.login("UnitTestPlain")).get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+
+            // Repetitive traffic, and a line much longer than the read and inflate buffers
+            String alert = "ALERT disk usage on host db01 is above 90 percent";
+            String longLine = alert.repeat(1000);
+            CountDownLatch compressedGotLong = compressedReceiver.expect(
+                    new TextMessage("UnitTestZip", false, longLine));
+            CountDownLatch plainGotLast = plainReceiver.expect(new TextMessage("UnitTestZip", false, alert + " 199"));
+            sender.sendPublicMessage(longLine);
+            for (int i = 0; i < 200; i++) {
+                sender.sendPublicMessage(alert + " " + i);
+            }
+            assertTrue(compressedGotLong.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(plainGotLast.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(compressedReceiver.expect(new TextMessage("UnitTestZip", false, alert + " 199"))
+                    .await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(sender.users().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).contains("UnitTestPlain"));
+
+            // Both directions are a fraction of the plain text size
+            long plainBytesIn = plain.getMetrics().getBytesIn();
+            assertTrue(compressed.getMetrics().getBytesIn() * 5 < plainBytesIn);
+            assertTrue(sender.getMetrics().getBytesOut() * 5 < longLine.length() + 200 * alert.length());
+
+            for (TCPClient c : List.of(sender, compressed, plain)) {
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test binary framing: multi-line and large messages reach framed clients intact, also combined with
+     * compression, while a client using lines gets the line breaks as spaces.
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testBinaryFraming() throws Exception {
+        try (NioEventLoop eventLoop = new NioEventLoop()) {
+            TCPClient sender = new TCPClient();
+            TCPClient framed = new TCPClient(eventLoop);
+            TCPClient framedZip = new TCPClient();
+            TCPClient plain = new TCPClient();
+            for (TCPClient c : List.of(sender, framed, framedZip, plain)) {
+                assertTrue(c.connect(SERVER_HOST, SERVER_PORT));
+                c.startListenThread();
+            }
+            DummyMsgReceiver framedReceiver = new DummyMsgReceiver();
+            DummyMsgReceiver framedZipReceiver = new DummyMsgReceiver();
+            DummyMsgReceiver plainReceiver = new DummyMsgReceiver();
+            framed.addListener(framedReceiver);
+            framedZip.addListener(framedZipReceiver);
+            plain.addListener(plainReceiver);
+            assertTrue(sender.enableBinaryFraming().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(framed.enableBinaryFraming().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(framedZip.enableBinaryFraming().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(framedZip.enableCompression().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            CompletableFuture.allOf(sender.login("UnitTestFrame"), framed.login("UnitTestFrame2"),
+                    framedZip.login("UnitTestFrame3"), plain.login("UnitTestLines"))
+                    .get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+
+            String multiLine = "first line\nsecond line\n\nafter an empty line";
+            CountDownLatch framedGot = framedReceiver.expect(new TextMessage("UnitTestFrame", false, multiLine));
+            CountDownLatch framedZipGot = framedZipReceiver.expect(
+                    new TextMessage("UnitTestFrame", false, multiLine));
+            CountDownLatch plainGot = plainReceiver.expect(new TextMessage("UnitTestFrame", false,
+                    multiLine.replace('\n', ' ')));
+            sender.sendPublicMessage(multiLine);
+            assertTrue(framedGot.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(framedZipGot.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(plainGot.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+
+            // A pasted log much larger than the read buffers, and a private message from a framed client
+            String log = "2026-10-17 12:00:00 INFO request handled in 3 ms\n".repeat(5000);
+            CountDownLatch framedGotLog = framedReceiver.expect(new TextMessage("UnitTestFrame", false, log));
+            CountDownLatch framedZipGotLog = framedZipReceiver.expect(new TextMessage("UnitTestFrame", false, log));
+            sender.sendPublicMessage(log);
+            assertTrue(framedGotLog.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(framedZipGotLog.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            CountDownLatch privateGot = plainReceiver.expect(new TextMessage("UnitTestFrame3", true, "a b"));
+            framedZip.sendPrivateMessage("UnitTestLines", "a\nb");
+            assertTrue(privateGot.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(framed.users().get(RESPONSE_TIMEOUT, TimeUnit.SECONDS).contains("UnitTestLines"));
+
+            for (TCPClient c : List.of(sender, framed, framedZip, plain)) {
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test that a client reconnects after the server restarts, logs in again and sends what was queued meanwhile.
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testReconnect() throws Exception {
+        TCPClient client = new TCPClient();
+        client.setReconnectPolicy(new ReconnectPolicy(Duration.ofMillis(20), Duration.ofMillis(200)));
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        client.startListenThread();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        client.addListener(receiver);
+        assertTrue(client.login("UnitTestBack").get().isSuccess());
+
+        // Stop the server and wait until the client notices
+        server.close();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT);
+        while (!client.isReconnecting()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.onSpinWait();
+        }
+
+        // A message to ourselves, sent while the connection is down. It is delivered only if the client has
+        // logged in again before it is replayed.
+        TextMessage expectedMsg = new TextMessage("UnitTestBack", true, "Sent across a restart");
+        CountDownLatch received = receiver.expect(expectedMsg);
+        CompletableFuture<Void> sent = client.sendPrivateMessage("UnitTestBack", "Sent across a restart");
+
+        server = new ChatServer(SERVER_PORT);
+        server.start();
+        sent.get(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(received.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(client.users().get().contains("UnitTestBack"));
+
+        client.disconnect();
+    }
+
+    /**
+     * Test that a client subscribed to presence is told when other users log in and out.
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testPresence() throws Exception {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        c1.startListenThread();
+        c2.startListenThread();
+
+        CountDownLatch joined = new CountDownLatch(1);
+        CountDownLatch left = new CountDownLatch(1);
+        c1.addListener(new EmptyChatListener() {
+            @Override
+            public void onUserJoined(String username) {
+                if (username.equals("UnitTestPresence2")) {
+                    joined.countDown();
+                }
+            }
+
+            @Override
+            public void onUserLeft(String username) {
+                if (username.equals("UnitTestPresence2")) {
+                    left.countDown();
+                }
+            }
+        });
+        assertTrue(c1.login("UnitTestPresence1").get().isSuccess());
+        // The embedded server supports presence, so no polling is needed
+        assertTrue(c1.enablePresence().get());
+
+        assertTrue(c2.login("UnitTestPresence2").get().isSuccess());
+        assertTrue(joined.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+        c2.disconnect();
+        assertTrue(left.await(RESPONSE_TIMEOUT, TimeUnit.SECONDS));
+
+        c1.disconnect();
+    }
 }
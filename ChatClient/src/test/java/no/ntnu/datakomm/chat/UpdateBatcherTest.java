@@ -0,0 +1,56 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UpdateBatcherTest {
+
+    /**
+     * Test that a burst of updates asks for one frame, and the frame applies all of them in order
+     */
+    @Test
+    public void testOneFramePerBurst() {
+        AtomicInteger frames = new AtomicInteger();
+        UpdateBatcher batcher = new UpdateBatcher(frames::incrementAndGet, 1000);
+        List<Integer> applied = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            batcher.submit(() -> applied.add(n));
+        }
+        assertEquals(1, frames.get());
+        assertEquals(100, batcher.runFrame());
+        assertEquals(1, frames.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) applied.get(i));
+        }
+
+        // The next update asks for a new frame
+        batcher.submit(() -> applied.add(100));
+        assertEquals(2, frames.get());
+    }
+
+    /**
+     * Test that a frame stops when its budget is used up, and the rest is left for the next frame
+     */
+    @Test
+    public void testFrameBudget() {
+        AtomicInteger frames = new AtomicInteger();
+        // No budget: every frame applies a single update
+        UpdateBatcher batcher = new UpdateBatcher(frames::incrementAndGet, 0);
+        for (int i = 0; i < 3; i++) {
+            batcher.submit(() -> { });
+        }
+        assertEquals(1, batcher.runFrame());
+        assertEquals(2, frames.get());
+        assertEquals(2, batcher.getPendingCount());
+        assertEquals(1, batcher.runFrame());
+        assertEquals(1, batcher.runFrame());
+        assertEquals(3, frames.get());
+        assertEquals(0, batcher.getPendingCount());
+    }
+}
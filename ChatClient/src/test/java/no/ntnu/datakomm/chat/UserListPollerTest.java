@@ -0,0 +1,194 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UserListPollerTest {
+    private static final Duration MIN_INTERVAL = Duration.ofMillis(50);
+    private static final Duration MAX_INTERVAL = Duration.ofMillis(400);
+
+    // A server without the "presence" command, which only answers help and users, one connection at a time
+    private ServerSocket server;
+    // The connection the server serves now
+    private volatile Socket connection;
+    // The users the server lists
+    private volatile String users = "alice bob";
+    // When each users request arrived, in nanoseconds. Guarded by itself.
+    private final List<Long> userRequests = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ServerSocket(0);
+        Thread serverThread = new Thread(this::serve);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        scheduler.shutdownNow();
+        server.close();
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            serveConnection();
+        }
+    }
+
+    private void serveConnection() {
+        try (Socket socket = server.accept();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            connection = socket;
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String response;
+                if (line.equals("help")) {
+                    response = "supported msg privmsg login users help";
+                } else if (line.equals("users")) {
+                    synchronized (userRequests) {
+                        userRequests.add(System.nanoTime());
+                        userRequests.notifyAll();
+                    }
+                    response = "users " + users;
+                } else {
+                    response = "cmderr command not supported";
+                }
+                out.write((response + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The connection or the test is over
+        }
+    }
+
+    /**
+     * Wait until the server has received a number of users requests.
+     *
+     * @return The arrival times of the requests so far, in milliseconds
+     */
+    private List<Long> awaitUserRequests(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        synchronized (userRequests) {
+            while (userRequests.size() < count) {
+                long left = deadline - System.nanoTime();
+                assertTrue("Only " + userRequests.size() + " users requests", left > 0);
+                TimeUnit.NANOSECONDS.timedWait(userRequests, left);
+            }
+            List<Long> millis = new ArrayList<>();
+            for (long nanos : userRequests) {
+                millis.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+            return millis;
+        }
+    }
+
+    /**
+     * Test the fallback for servers without presence events: the user list is polled, the interval backs off while
+     * it stays the same and drops back after a change, the changes are reported as joins and leaves, and polling
+     * stops when the client disconnects.
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testAdaptivePolling() throws Exception {
+        TCPClient client = new TCPClient();
+        CountDownLatch carolJoined = new CountDownLatch(1);
+        CountDownLatch bobLeft = new CountDownLatch(1);
+        client.addListener(new EmptyChatListener() {
+            @Override
+            public void onUserJoined(String username) {
+                if (username.equals("carol")) {
+                    carolJoined.countDown();
+                }
+            }
+
+            @Override
+            public void onUserLeft(String username) {
+                if (username.equals("bob")) {
+                    bobLeft.countDown();
+                }
+            }
+        });
+        assertTrue(client.connect(server.getInetAddress().getHostAddress(), server.getLocalPort()));
+        client.startListenThread();
+        assertFalse(client.enablePresence().get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Void> stopped = new UserListPoller(client, MIN_INTERVAL, MAX_INTERVAL).schedule(scheduler);
+
+        // The same list every time: 50, 100, 200 and then 400 ms between polls
+        List<Long> times = awaitUserRequests(5);
+        assertTrue(times.get(3) - times.get(2) >= 190);
+        assertTrue(times.get(4) - times.get(3) >= 390);
+        assertTrue(times.get(1) - times.get(0) < times.get(4) - times.get(3));
+
+        // A change is reported, and the next poll comes after the minimum interval again
+        users = "alice carol";
+        assertTrue(carolJoined.await(5, TimeUnit.SECONDS));
+        assertTrue(bobLeft.await(5, TimeUnit.SECONDS));
+        int changed = awaitUserRequests(0).size();
+        times = awaitUserRequests(changed + 1);
+        assertTrue(times.get(changed) - times.get(changed - 1) < 300);
+
+        client.disconnect();
+        stopped.get(5, TimeUnit.SECONDS);
+        assertFalse(scheduler.isShutdown());
+    }
+
+    /**
+     * Test that polling survives a lost connection that the client restores by itself
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testPollingAfterReconnect() throws Exception {
+        TCPClient client = new TCPClient();
+        // Reconnecting takes several poll intervals
+        ReconnectPolicy policy = new ReconnectPolicy(Duration.ofMillis(300), Duration.ofMillis(300));
+        policy.setJitter(0);
+        client.setReconnectPolicy(policy);
+        assertTrue(client.connect(server.getInetAddress().getHostAddress(), server.getLocalPort()));
+        client.startListenThread();
+        CompletableFuture<Void> stopped = new UserListPoller(client, MIN_INTERVAL, MIN_INTERVAL).schedule(scheduler);
+        awaitUserRequests(2);
+
+        // The server drops the connection, and the client connects again
+        Socket dropped = connection;
+        dropped.close();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (connection == dropped || !client.isConnectionActive()) {
+            assertTrue("The client did not reconnect", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        int before = awaitUserRequests(0).size();
+        awaitUserRequests(before + 3);
+        assertFalse(stopped.isDone());
+
+        client.disconnect();
+        stopped.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -1,21 +1,29 @@
 package no.ntnu.datakomm.chat.helpers;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import no.ntnu.datakomm.chat.TextMessage;
 
 /**
  * Receive and buffer messages. We can check whether a message from specific
- * sender with specific text was received.
+ * sender with specific text was received, or wait for it to arrive.
  */
 public class DummyMsgReceiver extends EmptyChatListener {
 
-    private final List<TextMessage> messages = new LinkedList<>();
-    private String msgError = null;
+    private final List<TextMessage> messages = new CopyOnWriteArrayList<>();
+    private final Map<TextMessage, CountDownLatch> expected = new ConcurrentHashMap<>();
+    private volatile String msgError = null;
 
     @Override
     public void onMessageReceived(TextMessage message) {
         messages.add(message);
+        CountDownLatch latch = expected.get(message);
+        if (latch != null) {
+            latch.countDown();
+        }
     }
 
     @Override
@@ -40,6 +48,20 @@ public class DummyMsgReceiver extends EmptyChatListener {
         messages.clear();
     }
 
+    /**
+     * Start waiting for a message. Call this before the message is sent, then await the returned latch.
+     *
+     * @param msg The message we expect
+     * @return A latch that is released when the message arrives
+     */
+    public CountDownLatch expect(TextMessage msg) {
+        CountDownLatch latch = expected.computeIfAbsent(msg, m -> new CountDownLatch(1));
+        if (hasReceived(msg)) {
+            latch.countDown();
+        }
+        return latch;
+    }
+
     /**
      * Return true if the given message has been received by this listener
      *
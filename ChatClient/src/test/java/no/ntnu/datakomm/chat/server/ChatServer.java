@@ -0,0 +1,199 @@
+package no.ntnu.datakomm.chat.server;
+
+import no.ntnu.datakomm.chat.ThreadFactories;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A lightweight, multi-threaded reference implementation of the chat server. It speaks the same protocol as the
+ * course server (login, msg, privmsg, users, help and joke), plus presence subscriptions (userjoin and userleave
+ * events) and can run inside the JVM of a test, on an ephemeral
+ * port, so the client can be tested without network access. Every client connection is served by its own thread.
+ */
+public class ChatServer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(ChatServer.class.getName());
+
+    private final int requestedPort;
+    private final ThreadFactory threadFactory;
+    private ServerSocket welcomeSocket;
+    private volatile boolean running = false;
+
+    // All connected clients, and the ones that have logged in, by username
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, ClientSession> usersByName = new ConcurrentHashMap<>();
+
+    /**
+     * Run the chat server.
+     *
+     * @param args Command-line arguments: the TCP port, 1300 if not given
+     * @throws IOException When the server socket could not be opened
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 1300;
+        // Non-daemon threads keep the JVM running after main returns
+        ChatServer server = new ChatServer(port, ThreadFactories.platformFactory("chat-server-", false));
+        server.start();
+        System.out.println("Chat server listening on port " + server.getPort());
+    }
+
+    /**
+     * Create a server that listens on all interfaces. Client threads come from the default thread factory.
+     *
+     * @param port TCP port to listen on, 0 to pick a free ephemeral port
+     */
+    public ChatServer(int port) {
+        this(port, ThreadFactories.defaultFactory());
+    }
+
+    /**
+     * @param port          TCP port to listen on, 0 to pick a free ephemeral port
+     * @param threadFactory Factory for the accept thread and the client threads
+     */
+    public ChatServer(int port, ThreadFactory threadFactory) {
+        this.requestedPort = port;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Open the listening socket and start accepting clients in the background.
+     *
+     * @throws IOException When the port could not be opened
+     */
+    public synchronized void start() throws IOException {
+        welcomeSocket = new ServerSocket();
+        welcomeSocket.setReuseAddress(true);
+        welcomeSocket.bind(new InetSocketAddress(requestedPort));
+        running = true;
+        threadFactory.newThread(this::acceptClients).start();
+    }
+
+    /**
+     * @return The port the server listens on. When started with port 0, this is the port that was picked.
+     */
+    public int getPort() {
+        return welcomeSocket.getLocalPort();
+    }
+
+    /**
+     * @return The address clients on this machine can connect to
+     */
+    public String getHost() {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    /**
+     * Stop accepting clients and close all client connections.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        try {
+            if (welcomeSocket != null) {
+                welcomeSocket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not close the server socket", e);
+        }
+        for (ClientSession session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * The accept loop: start a session thread for every client that connects.
+     */
+    private void acceptClients() {
+        while (running) {
+            try {
+                Socket clientSocket = welcomeSocket.accept();
+                // Responses are small and flushed one by one, don't let Nagle hold them back
+                clientSocket.setTcpNoDelay(true);
+                ClientSession session = new ClientSession(this, clientSocket);
+                sessions.add(session);
+                threadFactory.newThread(session).start();
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.log(Level.WARNING, "Could not accept a client", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Try to register a username for a session.
+     *
+     * @param session  The session that wants the name
+     * @param username The username
+     * @return true if the name was free (or already belonged to this session)
+     */
+    boolean claimUsername(ClientSession session, String username) {
+        ClientSession owner = usersByName.putIfAbsent(username, session);
+        return owner == null || owner == session;
+    }
+
+    /**
+     * Free a username, for example when its session closes or logs in with another name.
+     *
+     * @param session  The session that owns the name
+     * @param username The username
+     */
+    void releaseUsername(ClientSession session, String username) {
+        usersByName.remove(username, session);
+    }
+
+    /**
+     * @param username A username
+     * @return The session logged in with that name, or null
+     */
+    ClientSession findUser(String username) {
+        return usersByName.get(username);
+    }
+
+    /**
+     * @return The usernames of everybody logged in right now
+     */
+    Collection<String> getUsernames() {
+        return usersByName.keySet();
+    }
+
+    /**
+     * @return All connected sessions, also the ones that have not logged in
+     */
+    Collection<ClientSession> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Tell every client that subscribed to presence events that a user logged in or out.
+     *
+     * @param event The event line: userjoin or userleave and the username
+     */
+    void announcePresence(String event) {
+        for (ClientSession session : sessions) {
+            if (session.isPresenceSubscriber()) {
+                session.send(event);
+            }
+        }
+    }
+
+    /**
+     * Forget a session whose connection has closed.
+     *
+     * @param session The session
+     */
+    void removeSession(ClientSession session) {
+        sessions.remove(session);
+    }
+}
@@ -0,0 +1,311 @@
+package no.ntnu.datakomm.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+import no.ntnu.datakomm.chat.WireCompression;
+
+/**
+ * One client connection of the ChatServer. Reads commands from the client on its own thread and answers them
+ * according to the chat protocol.
+ */
+class ClientSession implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ClientSession.class.getName());
+
+    private static final String SUPPORTED = "supported msg privmsg login users help joke presence "
+            + WireCompression.COMMAND + " " + BinaryFraming.COMMAND;
+    private static final String[] JOKES = {
+            "Why do programmers prefer dark mode? Because light attracts bugs.",
+            "There are 10 kinds of people: those who understand binary and those who don't.",
+            "A TCP packet walks into a bar and says: I want a beer. The bartender says: You want a beer?"
+    };
+
+    private final ChatServer server;
+    private final Socket socket;
+    // Replaced by decompressing streams when the client turns on compression. Only the session thread reads, and
+    // out is guarded by this.
+    private InputStream in;
+    private OutputStream out;
+    private boolean compressed = false;
+    // True once the client sends binary frames. Only used by the session thread.
+    private boolean framedInput = false;
+    // True once the client is sent binary frames. Guarded by this.
+    private boolean framedOutput = false;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private volatile String username = null;
+    // True when the client wants to be told when users log in and out
+    private volatile boolean presence = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param server The server this session belongs to
+     * @param socket The client's socket
+     * @throws IOException When the socket streams can not be opened
+     */
+    ClientSession(ChatServer server, Socket socket) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * The session thread: handle commands until the client disconnects.
+     */
+    @Override
+    public void run() {
+        try {
+            String command;
+            while ((command = readCommand()) != null) {
+                handleCommand(command);
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                LOGGER.log(Level.FINE, "Client connection failed", e);
+            }
+        }
+        close();
+    }
+
+    /**
+     * Close the connection and log the user out.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        String name = username;
+        server.removeSession(this);
+        if (name != null) {
+            server.releaseUsername(this, name);
+            server.announcePresence("userleave " + name);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close client socket", e);
+        }
+    }
+
+    /**
+     * @return The username, or null if the client has not logged in
+     */
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return true if the client subscribed to presence events
+     */
+    boolean isPresenceSubscriber() {
+        return presence;
+    }
+
+    /**
+     * Send one command to the client. Several sessions may send to the same client at the same time. Unless the
+     * client uses binary framing, line breaks in the command are sent as spaces.
+     *
+     * @param response The command, without the newline
+     */
+    synchronized void send(String response) {
+        try {
+            if (framedOutput) {
+                BinaryFraming.writeFrame(out, response.getBytes(StandardCharsets.UTF_8));
+            } else {
+                out.write(response.replace('\n', ' ').replace('\r', ' ').getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not send to client", e);
+        }
+    }
+
+    /**
+     * Execute one command received from the client.
+     *
+     * @param command The command line, without the newline
+     */
+    private void handleCommand(String command) {
+        String[] parts = command.split(" ", 2);
+        String args = parts.length > 1 ? parts[1] : "";
+        switch (parts[0]) {
+            case "login":
+                login(args);
+                break;
+            case "msg":
+                publicMessage(args);
+                break;
+            case "privmsg":
+                privateMessage(args);
+                break;
+            case "users":
+                send("users " + String.join(" ", server.getUsernames()));
+                break;
+            case "help":
+                send(SUPPORTED);
+                break;
+            case "presence":
+                setPresence(args);
+                break;
+            case WireCompression.COMMAND:
+                startCompression();
+                break;
+            case BinaryFraming.COMMAND:
+                startFraming();
+                break;
+            case "joke":
+                send("joke " + JOKES[ThreadLocalRandom.current().nextInt(JOKES.length)]);
+                break;
+            default:
+                send("cmderr command not supported");
+                break;
+        }
+    }
+
+    private void login(String name) {
+        if (name.isEmpty() || !name.chars().allMatch(Character::isLetterOrDigit)) {
+            send("loginerr incorrect username format");
+        } else if (!server.claimUsername(this, name)) {
+            send("loginerr username already in use");
+        } else {
+            String previous = username;
+            username = name;
+            send("loginok");
+            if (!name.equals(previous)) {
+                if (previous != null) {
+                    server.releaseUsername(this, previous);
+                    server.announcePresence("userleave " + previous);
+                }
+                server.announcePresence("userjoin " + name);
+            }
+        }
+    }
+
+    /**
+     * Subscribe to presence events ("presence on", answered with the current user list) or unsubscribe
+     * ("presence off").
+     */
+    private void setPresence(String args) {
+        if (args.equals("on")) {
+            presence = true;
+            send("users " + String.join(" ", server.getUsernames()));
+        } else if (args.equals("off")) {
+            presence = false;
+        } else {
+            send("cmderr presence on or presence off");
+        }
+    }
+
+    /**
+     * Switch to the compressed wire mode: everything the client sends after the "deflate" line is compressed, and
+     * everything sent to the client after the "deflateok" answer.
+     */
+    private void startCompression() {
+        if (compressed) {
+            send("cmderr already compressed");
+            return;
+        }
+        compressed = true;
+        // The input is read byte by byte, so nothing after the "deflate" line has been consumed yet
+        in = new BufferedInputStream(new InflaterInputStream(in, WireCompression.newInflater()));
+        synchronized (this) {
+            send(WireCompression.RESPONSE);
+            // With sync flush, every flush() in send() makes the line decodable right away
+            out = new DeflaterOutputStream(out, WireCompression.newDeflater(), true);
+        }
+    }
+
+    /**
+     * Switch to binary framing: everything the client sends after the "binary" line is framed, and everything sent
+     * to the client after the "binaryok" answer.
+     */
+    private void startFraming() {
+        if (framedInput) {
+            send("cmderr already framed");
+            return;
+        }
+        framedInput = true;
+        synchronized (this) {
+            send(BinaryFraming.RESPONSE);
+            framedOutput = true;
+        }
+    }
+
+    private void publicMessage(String text) {
+        String sender = username != null ? username : "anonymous";
+        int count = 0;
+        for (ClientSession session : server.getSessions()) {
+            if (session != this) {
+                session.send("msg " + sender + " " + text);
+                count++;
+            }
+        }
+        send("msgok " + count);
+    }
+
+    private void privateMessage(String args) {
+        if (username == null) {
+            send("msgerr unauthorized");
+            return;
+        }
+        String[] parts = args.split(" ", 2);
+        ClientSession recipient = server.findUser(parts[0]);
+        if (recipient == null) {
+            send("msgerr incorrect recipient " + parts[0]);
+        } else {
+            recipient.send("privmsg " + username + " " + (parts.length > 1 ? parts[1] : ""));
+            send("msgok 1");
+        }
+    }
+
+    /**
+     * Read one command from the client, as a line or a frame depending on the framing mode.
+     *
+     * @return The command, or null at the end of the stream
+     * @throws IOException On socket errors, or an invalid frame
+     */
+    private String readCommand() throws IOException {
+        if (!framedInput) {
+            return readLine();
+        }
+        byte[] payload = BinaryFraming.readFrame(in);
+        return payload != null ? new String(payload, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Read one line from the client, byte by byte, so the stream can be wrapped differently later in the session.
+     *
+     * @return The line without the newline, or null at the end of the stream
+     * @throws IOException On socket errors
+     */
+    private String readLine() throws IOException {
+        line.reset();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int length = line.size();
+                byte[] bytes = line.toByteArray();
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+package no.ntnu.datakomm;
+
+/**
+ * The protocol of the warm-up server: the client sends "a+b" for two integers a and b, the server answers with
+ * the sum. Anything else is answered with "error". "game over" ends the conversation.
+ */
+public class ArithmeticProtocol {
+    // The request that ends the conversation
+    public static final String GAME_OVER = "game over";
+    // Response to requests that can not be understood
+    public static final String ERROR = "error";
+
+    private ArithmeticProtocol() {
+    }
+
+    /**
+     * Find the response to one request.
+     *
+     * @param request The request line, without the newline
+     * @return The response line, without the newline, or null when the client said game over
+     */
+    public static String respond(String request) {
+        if (GAME_OVER.equals(request)) {
+            return null;
+        }
+        int plus = request.indexOf('+');
+        if (plus < 0) {
+            return ERROR;
+        }
+        try {
+            long a = Integer.parseInt(request.substring(0, plus).trim());
+            long b = Integer.parseInt(request.substring(plus + 1).trim());
+            return Long.toString(a + b);
+        } catch (NumberFormatException e) {
+            return ERROR;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated client of the load generator. Keeps a connection open and sends requests on a fixed schedule,
+ * waiting for each response before the next request. Latency is measured from the time the request was
+ * scheduled to be sent, not from when it actually was, so a slow server is not hidden by a client that falls
+ * behind (no coordinated omission).
+ */
+class LoadClient implements Runnable {
+    // How long to wait before trying again after a failure, when requests are not paced by a rate
+    private static final long ERROR_PAUSE_NANOS = 100_000_000L;
+
+    private final LoadGenerator generator;
+    private final int clientNumber;
+    private final long startNanos;
+    private final long endNanos;
+    private final long intervalNanos;
+
+    private Socket socket;
+    private BufferedReader reader;
+    private Writer writer;
+
+    /**
+     * @param generator     The generator that collects the results
+     * @param clientNumber  Number of this client, from 0
+     * @param startNanos    When to send the first request (System.nanoTime)
+     * @param endNanos      When to stop
+     * @param intervalNanos Time between two requests, 0 to send as fast as the server answers
+     */
+    LoadClient(LoadGenerator generator, int clientNumber, long startNanos, long endNanos, long intervalNanos) {
+        this.generator = generator;
+        this.clientNumber = clientNumber;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.intervalNanos = intervalNanos;
+    }
+
+    @Override
+    public void run() {
+        waitUntil(startNanos);
+        long scheduled = startNanos;
+        while (scheduled < endNanos && !Thread.currentThread().isInterrupted()) {
+            waitUntil(scheduled);
+            boolean failed = false;
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                long sent = intervalNanos > 0 ? scheduled : System.nanoTime();
+                boolean ok = sendRequest();
+                generator.recordResponse(sent, System.nanoTime(), ok);
+            } catch (IOException e) {
+                generator.recordError(System.nanoTime());
+                close();
+                failed = true;
+            }
+            if (intervalNanos > 0) {
+                scheduled += intervalNanos;
+            } else {
+                scheduled = System.nanoTime() + (failed ? ERROR_PAUSE_NANOS : 0);
+            }
+        }
+        close();
+    }
+
+    /**
+     * Open the connection. In chat mode, also log in.
+     *
+     * @throws IOException When the server can not be reached or refuses the login
+     */
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(generator.getHost(), generator.getPort()));
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        if (generator.getMode() == LoadGenerator.Mode.CHAT) {
+            send("login load" + clientNumber);
+            String response = readResponse("login");
+            if (!"loginok".equals(response)) {
+                throw new IOException("Login failed: " + response);
+            }
+        }
+    }
+
+    /**
+     * Send one request and wait for its response.
+     *
+     * @return true if the response was the expected one
+     * @throws IOException When the connection fails
+     */
+    private boolean sendRequest() throws IOException {
+        if (generator.getMode() == LoadGenerator.Mode.CHAT) {
+            send("msg Load test message from client " + clientNumber);
+            String response = readResponse("msg");
+            return response.startsWith("msgok");
+        } else {
+            int a = ThreadLocalRandom.current().nextInt(1, 100);
+            int b = ThreadLocalRandom.current().nextInt(1, 100);
+            send(a + "+" + b);
+            return Integer.toString(a + b).equals(readResponse(null));
+        }
+    }
+
+    private void send(String request) throws IOException {
+        writer.write(request);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Read the response to a request. In chat mode, messages broadcast by the other clients arrive on the same
+     * connection and are skipped.
+     *
+     * @param command The chat command the response belongs to, null in arithmetic mode
+     * @return The response line
+     * @throws IOException When the connection is closed or fails
+     */
+    private String readResponse(String command) throws IOException {
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Server closed the connection");
+            }
+            if (command == null || !isBroadcast(line)) {
+                return line;
+            }
+        }
+    }
+
+    private static boolean isBroadcast(String line) {
+        return line.startsWith("msg ") || line.startsWith("privmsg ") || line.startsWith("users ");
+    }
+
+    private void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do, the connection is gone either way
+            }
+            socket = null;
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package no.ntnu.datakomm;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load generator for the arithmetic server (SimpleTcpServer) and the chat server. Runs a number of concurrent
+ * clients that together send requests at a target rate, ramps the clients up gradually, and reports throughput,
+ * errors and latency percentiles, both for the whole run and for every second of it. The per-second rows show
+ * where latency starts to climb while the load ramps up: the saturation point of the server.
+ * <p>
+ * Usage: LoadGenerator [--host h] [--port p] [--mode arith|chat] [--clients n] [--rate requests/s]
+ * [--ramp-up seconds] [--duration seconds] [--format csv|json] [--output file]
+ */
+public class LoadGenerator {
+    /**
+     * The protocol the clients speak.
+     */
+    public enum Mode {
+        /** Send a+b and expect the sum, as SimpleTcpServer does */
+        ARITH,
+        /** Log in and send public messages, expect msgok, as the chat server does */
+        CHAT
+    }
+
+    private String host = "localhost";
+    private int port = 1301;
+    private Mode mode = Mode.ARITH;
+    private int clients = 10;
+    // Requests per second over all clients, 0 for as fast as the server answers
+    private double rate = 100;
+    private int rampUpSeconds = 0;
+    private int durationSeconds = 10;
+    private String format = "csv";
+    private String output = null;
+
+    // Results. Steady state: the part of the run after the ramp-up.
+    private long startNanos;
+    private long steadyNanos;
+    private final LatencyHistogram steadyLatency = new LatencyHistogram();
+    private final LongAdder steadyResponses = new LongAdder();
+    private final LongAdder steadyErrors = new LongAdder();
+    private Interval[] intervals;
+
+    /**
+     * Run the load generator.
+     *
+     * @param args Command-line options, see the class description
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            log("ERROR: " + e.getMessage());
+            log("Usage: LoadGenerator [--host h] [--port p] [--mode arith|chat] [--clients n] [--rate requests/s]"
+                    + " [--ramp-up seconds] [--duration seconds] [--format csv|json] [--output file]");
+            return;
+        }
+        try {
+            generator.run();
+            generator.export();
+        } catch (InterruptedException e) {
+            log("Load generator interrupted");
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log("ERROR: Could not write the results: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the settings from the command line.
+     *
+     * @param args Command-line options
+     * @throws IllegalArgumentException When an option is unknown or has an invalid value
+     */
+    void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host" -> host = value;
+                case "--port" -> port = Integer.parseInt(value);
+                case "--mode" -> mode = Mode.valueOf(value.toUpperCase(Locale.ROOT));
+                case "--clients" -> clients = Integer.parseInt(value);
+                case "--rate" -> rate = Double.parseDouble(value);
+                case "--ramp-up" -> rampUpSeconds = Integer.parseInt(value);
+                case "--duration" -> durationSeconds = Integer.parseInt(value);
+                case "--format" -> format = value.toLowerCase(Locale.ROOT);
+                case "--output" -> output = value;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (clients < 1 || rate < 0 || rampUpSeconds < 0 || durationSeconds < 1) {
+            throw new IllegalArgumentException("Clients and duration must be positive, rate and ramp-up not negative");
+        }
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new IllegalArgumentException("Format must be csv or json");
+        }
+    }
+
+    /**
+     * Run the clients and wait for all of them to finish. Client number i starts i/clients of the ramp-up time
+     * after the first one. All of them stop at the end of the run.
+     *
+     * @throws InterruptedException When interrupted while waiting for the clients
+     */
+    public void run() throws InterruptedException {
+        int totalSeconds = rampUpSeconds + durationSeconds;
+        intervals = new Interval[totalSeconds + 1];
+        for (int i = 0; i < intervals.length; i++) {
+            intervals[i] = new Interval();
+        }
+        log("Starting " + clients + " " + mode + " clients against " + host + ":" + port + ", "
+                + (rate > 0 ? rate + " requests/s" : "no rate limit") + ", ramp-up " + rampUpSeconds
+                + " s, steady state " + durationSeconds + " s");
+
+        // Give the threads some time to start before the first request is due
+        startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        steadyNanos = startNanos + TimeUnit.SECONDS.toNanos(rampUpSeconds);
+        long endNanos = steadyNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * clients / rate) : 0;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            long clientStart = startNanos + TimeUnit.SECONDS.toNanos(rampUpSeconds) * i / clients;
+            Thread t = new Thread(new LoadClient(this, i, clientStart, endNanos, intervalNanos), "load-client-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        log("Done: " + summaryLine());
+    }
+
+    /**
+     * Called by a client when a response arrived.
+     *
+     * @param sentNanos     When the request was due to be sent
+     * @param receivedNanos When the response arrived
+     * @param ok            true if the response was the expected one
+     */
+    void recordResponse(long sentNanos, long receivedNanos, boolean ok) {
+        if (!ok) {
+            recordError(receivedNanos);
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(receivedNanos - sentNanos);
+        Interval interval = intervalAt(receivedNanos);
+        interval.latency.record(micros);
+        interval.responses.increment();
+        if (sentNanos >= steadyNanos) {
+            steadyLatency.record(micros);
+            steadyResponses.increment();
+        }
+    }
+
+    /**
+     * Called by a client when a request failed: wrong response, connection refused or lost.
+     *
+     * @param nanos When it happened
+     */
+    void recordError(long nanos) {
+        intervalAt(nanos).errors.increment();
+        if (nanos >= steadyNanos) {
+            steadyErrors.increment();
+        }
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    private Interval intervalAt(long nanos) {
+        int second = (int) Math.max(0, (nanos - startNanos) / TimeUnit.SECONDS.toNanos(1));
+        return intervals[Math.min(second, intervals.length - 1)];
+    }
+
+    /**
+     * Write the results in the chosen format, to the output file or to the console.
+     *
+     * @throws IOException When the file can not be written
+     */
+    public void export() throws IOException {
+        try (Writer out = output != null ? new FileWriter(output) : new PrintWriter(System.out) {
+            @Override
+            public void close() {
+                // Flush, but leave System.out open
+                flush();
+            }
+        }) {
+            if (format.equals("json")) {
+                writeJson(out);
+            } else {
+                writeCsv(out);
+            }
+        }
+        if (output != null) {
+            log("Results written to " + output);
+        }
+    }
+
+    /**
+     * One row per second of the run, then a summary row for the steady state.
+     */
+    private void writeCsv(Writer out) throws IOException {
+        out.write("second,responses,errors,throughput_per_s,p50_us,p99_us,p999_us,max_us\n");
+        for (int i = 0; i < intervals.length; i++) {
+            Interval interval = intervals[i];
+            out.write(csvRow(Integer.toString(i), interval.responses.sum(), interval.errors.sum(), 1,
+                    interval.latency));
+        }
+        out.write(csvRow("steady", steadyResponses.sum(), steadyErrors.sum(), durationSeconds, steadyLatency));
+    }
+
+    private static String csvRow(String name, long responses, long errors, int seconds, LatencyHistogram latency) {
+        return String.format(Locale.ROOT, "%s,%d,%d,%.1f,%d,%d,%d,%d%n", name, responses, errors,
+                (double) responses / seconds, latency.getPercentile(50), latency.getPercentile(99),
+                latency.getPercentile(99.9), latency.getMax());
+    }
+
+    private void writeJson(Writer out) throws IOException {
+        out.write("{\n");
+        out.write(String.format(Locale.ROOT,
+                "  \"host\": \"%s\",\n  \"port\": %d,\n  \"mode\": \"%s\",\n  \"clients\": %d,\n"
+                        + "  \"targetRate\": %.1f,\n  \"rampUpSeconds\": %d,\n  \"durationSeconds\": %d,\n",
+                host.replace("\\", "\\\\").replace("\"", "\\\""), port, mode.name().toLowerCase(Locale.ROOT),
+                clients, rate, rampUpSeconds, durationSeconds));
+        out.write("  \"steady\": " + jsonObject(steadyResponses.sum(), steadyErrors.sum(), durationSeconds,
+                steadyLatency) + ",\n");
+        out.write("  \"seconds\": [\n");
+        for (int i = 0; i < intervals.length; i++) {
+            Interval interval = intervals[i];
+            out.write("    " + jsonObject(interval.responses.sum(), interval.errors.sum(), 1, interval.latency));
+            out.write(i + 1 < intervals.length ? ",\n" : "\n");
+        }
+        out.write("  ]\n}\n");
+    }
+
+    private static String jsonObject(long responses, long errors, int seconds, LatencyHistogram latency) {
+        return String.format(Locale.ROOT, "{\"responses\": %d, \"errors\": %d, \"throughputPerSecond\": %.1f, "
+                        + "\"p50Micros\": %d, \"p99Micros\": %d, \"p999Micros\": %d, \"maxMicros\": %d}",
+                responses, errors, (double) responses / seconds, latency.getPercentile(50),
+                latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax());
+    }
+
+    private String summaryLine() {
+        return String.format(Locale.ROOT, "%d responses, %d errors, %.1f responses/s, p50 %d us, p99 %d us, "
+                        + "p99.9 %d us", steadyResponses.sum(), steadyErrors.sum(),
+                (double) steadyResponses.sum() / durationSeconds, steadyLatency.getPercentile(50),
+                steadyLatency.getPercentile(99), steadyLatency.getPercentile(99.9));
+    }
+
+    /**
+     * The results of one second of the run.
+     */
+    private static class Interval {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder responses = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    private static void log(String message) {
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,172 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A server engine with non-blocking sockets: one thread serves all connections, using a selector.
+ */
+public class NioServerEngine implements ServerEngine {
+    private static final Logger LOGGER = Logger.getLogger(NioServerEngine.class.getName());
+    // Longest request line accepted. Longer lines close the connection.
+    private static final int MAX_LINE = 1024;
+
+    private volatile Selector selector;
+    private volatile boolean running;
+
+    @Override
+    public void serve(int port) throws IOException {
+        try (Selector sel = Selector.open();
+             ServerSocketChannel welcomeChannel = ServerSocketChannel.open()) {
+            selector = sel;
+            welcomeChannel.bind(new InetSocketAddress(port));
+            welcomeChannel.configureBlocking(false);
+            welcomeChannel.register(sel, SelectionKey.OP_ACCEPT);
+            running = true;
+            while (running) {
+                sel.select();
+                Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        processKey(key);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Client connection failed", e);
+                        closeConnection(key);
+                    }
+                }
+            }
+            for (SelectionKey key : sel.keys()) {
+                if (key.attachment() != null) {
+                    closeConnection(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    private void processKey(SelectionKey key) throws IOException {
+        if (key.isAcceptable()) {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(key.selector(), SelectionKey.OP_READ, new Connection());
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            readRequests(key);
+        }
+        if (key.isValid() && key.isWritable()) {
+            writeResponses(key);
+        }
+    }
+
+    /**
+     * Read what has arrived, and answer every complete request line in it.
+     */
+    private void readRequests(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (channel.read(connection.in) < 0) {
+            closeConnection(key);
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        int lineStart = in.position();
+        for (int i = lineStart; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int lineEnd = i > lineStart && in.get(i - 1) == '\r' ? i - 1 : i;
+                String request = new String(in.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                lineStart = i + 1;
+                String response = ArithmeticProtocol.respond(request);
+                if (response == null) {
+                    connection.gameOver = true;
+                    break;
+                }
+                connection.queue(response);
+            }
+        }
+        in.position(lineStart);
+        in.compact();
+        if (!connection.gameOver && !in.hasRemaining()) {
+            // The line does not fit in the buffer
+            closeConnection(key);
+            return;
+        }
+        writeResponses(key);
+    }
+
+    /**
+     * Write as much of the queued responses as the socket takes. When the socket is full, stop reading requests
+     * from this client and wait for OP_WRITE, so a client that does not read can not fill the server's memory.
+     */
+    private void writeResponses(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        connection.out.flip();
+        channel.write(connection.out);
+        connection.out.compact();
+        if (connection.out.position() > 0) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (connection.gameOver) {
+            closeConnection(key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close client connection", e);
+        }
+    }
+
+    /**
+     * Buffers of one connection.
+     */
+    private static class Connection {
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+        ByteBuffer out = ByteBuffer.allocate(256);
+        boolean gameOver = false;
+
+        /**
+         * Add a response line to the output buffer, growing it if needed.
+         */
+        void queue(String response) {
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            if (out.remaining() < bytes.length + 1) {
+                int capacity = Math.max(out.capacity() * 2, out.position() + bytes.length + 1);
+                ByteBuffer bigger = ByteBuffer.allocate(capacity);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(bytes);
+            out.put((byte) '\n');
+        }
+    }
+}
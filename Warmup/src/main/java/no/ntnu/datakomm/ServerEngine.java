@@ -0,0 +1,22 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+
+/**
+ * The way a server handles its connections. All engines serve the same protocol (ArithmeticProtocol) so they
+ * can be compared under the same load.
+ */
+public interface ServerEngine {
+    /**
+     * Accept and serve clients until stop() is called. Does not return before that.
+     *
+     * @param port The TCP port to listen on
+     * @throws IOException When the port can not be opened
+     */
+    void serve(int port) throws IOException;
+
+    /**
+     * Stop accepting clients and close the connections.
+     */
+    void stop();
+}
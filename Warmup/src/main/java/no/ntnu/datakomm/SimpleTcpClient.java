@@ -1,26 +1,41 @@
 package no.ntnu.datakomm;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A Simple TCP client, used as a warm-up exercise for assignment A4.
+ * A Simple TCP client, used as a warm-up exercise for assignment A4. The reader and writer are created once per
+ * connection, so bytes buffered by the reader are never lost, and several requests can be sent before the
+ * responses are read (pipelining).
  */
 public class SimpleTcpClient {
     // Remote host where the server will be running
     private static final String HOST = "datakomm.work";
     // TCP port
     private static final int PORT = 1301;
+    // How many requests the demo sends in one pipelined batch
+    private static final int PIPELINE_DEPTH = 5;
     // Logger
     private final Logger logger;
     // Client socket
     private final Socket clientSocket;
+    // Server address
+    private final String host;
+    private final int port;
+    // Streams of the connection, created when connected
+    private BufferedReader inFromServer;
+    private Writer outToServer;
     // Response from the server
     private static final String SERVER_1 = "The server is not connected";
 
@@ -28,17 +43,31 @@ public class SimpleTcpClient {
      *  An instance of SimpleTcpClient
      */
     public SimpleTcpClient(){
+        this(HOST, PORT);
+    }
+
+    /**
+     * An instance of SimpleTcpClient for the given server.
+     *
+     * @param host Remote host where the server runs
+     * @param port TCP port of the server
+     */
+    public SimpleTcpClient(String host, int port) {
         this.logger = Logger.getLogger(getClass().toString());
+        this.host = host;
+        this.port = port;
         clientSocket = new Socket();
     }
 
     /**
      * Run the TCP Client.
      *
-     * @param args Command line arguments. Not used.
+     * @param args Command line arguments: host and port of the server, both optional.
      */
     public static void main(String[] args) {
-        SimpleTcpClient client = new SimpleTcpClient();
+        String host = args.length > 0 ? args[0] : HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+        SimpleTcpClient client = new SimpleTcpClient(host, port);
         try {
             client.run();
         } catch (InterruptedException e) {
@@ -67,7 +96,7 @@ public class SimpleTcpClient {
         int b = (int) (1 + Math.random() * 10);
         String request = a + "+" + b;
 
-        if (sendRequestToServer(request)) {
+        if (!sendRequestToServer(request)) {
             log("ERROR: Failed to send valid message to server!");
             return;
         }
@@ -82,7 +111,7 @@ public class SimpleTcpClient {
 
         sleepRandomTime();
         request = "bla+bla";
-        if (sendRequestToServer(request)) {
+        if (!sendRequestToServer(request)) {
             log("ERROR: Failed to send invalid message to server!");
             return;
         }
@@ -95,14 +124,26 @@ public class SimpleTcpClient {
         }
         log("Server responded with: " + response);
 
-        if (sendRequestToServer("game over") || !closeConnection()) {
+        // Send several requests at once, then read all the responses
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            requests.add(i + "+" + (i * i));
+        }
+        List<String> responses = pipeline(requests);
+        if (responses == null) {
+            log("ERROR: Pipelined requests failed!");
+            return;
+        }
+        log("Sent " + requests + " in one go, server responded with " + responses);
+
+        if (!sendRequestToServer("game over") || !closeConnection()) {
             log("ERROR: Failed to stop conversation");
             return;
         }
         log("Game over, connection closed");
 
         // When the connection is closed, try to send one more message. It should fail.
-        if (sendRequestToServer("2+2")) {
+        if (!sendRequestToServer("2+2")) {
             log("Sending another message after closing the connection failed as expected");
         } else {
             log("ERROR: sending a message after closing the connection did not fail!");
@@ -132,8 +173,13 @@ public class SimpleTcpClient {
     private boolean connectToServer() {
         // Remember to catch all possible exceptions that the Socket class can throw.
         try {
-            InetSocketAddress serverAddress = new InetSocketAddress(HOST, PORT);
+            InetSocketAddress serverAddress = new InetSocketAddress(host, port);
             clientSocket.connect(serverAddress);
+            clientSocket.setTcpNoDelay(true);
+            inFromServer = new BufferedReader(
+                    new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+            outToServer = new BufferedWriter(
+                    new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
             System.out.println(serverAddress);
 
             return true;
@@ -173,6 +219,15 @@ public class SimpleTcpClient {
     }
 
 
+    /**
+     * Check whether the connection is open, from the socket's own state. This does not send anything.
+     *
+     * @return True when the socket is connected and not closed
+     */
+    private boolean isConnectionOpen() {
+        return clientSocket.isConnected() && !clientSocket.isClosed() && outToServer != null;
+    }
+
     /**
      * Send a request message to the server (newline will be added automatically)
      *
@@ -180,22 +235,67 @@ public class SimpleTcpClient {
      * @return True when message successfully sent, false on error.
      */
     private boolean sendRequestToServer(String request) {
-        // Hint: you should check if the connection is open
+        if (!writeRequest(request)) {
+            return false;
+        }
         try {
-            if (clientSocket.getInetAddress().isReachable(50)) {
+            outToServer.flush();
+            return true;
+        } catch (IOException i) {
+            logger.log(Level.INFO, SERVER_1);
+        }
+        return false;
+    }
 
-                PrintWriter outToServer = new PrintWriter(
-                        clientSocket.getOutputStream(), true);
-                outToServer.println(request);
-                return true;
+    /**
+     * Put a request in the output buffer, without sending it yet.
+     *
+     * @param request The request message, without the newline
+     * @return True on success, false when the connection is not open or fails
+     */
+    private boolean writeRequest(String request) {
+        if (!isConnectionOpen()) {
+            logger.log(Level.INFO, SERVER_1);
+            return false;
+        }
+        try {
+            outToServer.write(request);
+            outToServer.write('\n');
+            return true;
+        } catch (IOException i) {
+            logger.log(Level.INFO, SERVER_1);
+        }
+        return false;
+    }
 
-            } else {
-                logger.log(Level.INFO, SERVER_1);
+    /**
+     * Send several requests in one write, then read one response for each of them. The server answers requests
+     * in order, so response number i belongs to request number i.
+     *
+     * @param requests The requests, without newlines
+     * @return The responses in the same order, or null on error
+     */
+    public List<String> pipeline(List<String> requests) {
+        for (String request : requests) {
+            if (!writeRequest(request)) {
+                return null;
             }
-        } catch (IOException i){
+        }
+        try {
+            outToServer.flush();
+        } catch (IOException i) {
             logger.log(Level.INFO, SERVER_1);
+            return null;
         }
-        return false;
+        List<String> responses = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            String response = readResponseFromServer();
+            if (response == null) {
+                return null;
+            }
+            responses.add(response);
+        }
+        return responses;
     }
 
     /**
@@ -205,19 +305,16 @@ public class SimpleTcpClient {
      * (not included in the returned value).
      */
     private String readResponseFromServer() {
-        // Hint: you should check if the connection is open
-        String response = "";
-        if(clientSocket.isConnected()){
-            try {
-                BufferedReader inFromServer = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream()));
-                response = inFromServer.readLine();
-            } catch (IOException i){
-                logger.log(Level.SEVERE, SERVER_1);
-            }
-        }else{ logger.log(Level.INFO, SERVER_1); }
-
-        return response;
+        if (!isConnectionOpen()) {
+            logger.log(Level.INFO, SERVER_1);
+            return null;
+        }
+        try {
+            return inFromServer.readLine();
+        } catch (IOException i) {
+            logger.log(Level.SEVERE, SERVER_1);
+        }
+        return null;
     }
 
     /**
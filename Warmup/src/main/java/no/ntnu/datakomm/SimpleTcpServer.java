@@ -1,83 +1,93 @@
 package no.ntnu.datakomm;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A Simple TCP server, used as a warm-up exercise for assignment A4.
+ * A Simple TCP server, used as a warm-up exercise for assignment A4. Serves the arithmetic protocol
+ * (see ArithmeticProtocol) to any number of clients at the same time. How the connections are handled is
+ * chosen with the engine: a pool of platform threads, a virtual thread per connection or a single NIO selector
+ * thread.
  */
 public class SimpleTcpServer {
     private static final int PORT = 1301;
+    // Number of threads of the thread pool engine, and so the most clients it serves at the same time
+    private static final int POOL_SIZE = 64;
+
+    /**
+     * The ways the server can handle its connections.
+     */
+    public enum Engine {
+        THREAD_POOL,
+        VIRTUAL,
+        NIO
+    }
 
     private final Logger logger;
+    private final int port;
+    private final ServerEngine engine;
 
+    /**
+     * Create a server on the default port, with the NIO engine.
+     */
     public SimpleTcpServer() {
+        this(PORT, Engine.NIO);
+    }
+
+    /**
+     * @param port   TCP port to listen on
+     * @param engine How to handle the connections
+     */
+    public SimpleTcpServer(int port, Engine engine) {
         this.logger = Logger.getLogger(getClass().toString());
+        this.port = port;
+        this.engine = switch (engine) {
+            case THREAD_POOL -> ThreadedServerEngine.threadPool(POOL_SIZE);
+            case VIRTUAL -> ThreadedServerEngine.virtualThreads();
+            case NIO -> new NioServerEngine();
+        };
     }
 
+    /**
+     * Run the server.
+     *
+     * @param args Command-line arguments: the engine (thread_pool, virtual or nio, default nio) and the port, both
+     *             optional
+     */
     public static void main(String[] args) {
-        SimpleTcpServer server = new SimpleTcpServer();
-        log("Simple TCP server starting");
+        Engine engine = args.length > 0 ? Engine.valueOf(args[0].toUpperCase(Locale.ROOT)) : Engine.NIO;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+        SimpleTcpServer server = new SimpleTcpServer(port, engine);
+        log("Simple TCP server starting with engine " + engine);
         server.run();
-        log("ERROR: the server should never go out of the run() method! After handling one client");
+        log("Simple TCP server stopped");
     }
 
+    /**
+     * Accept and serve clients until stop() is called.
+     */
     public void run() {
-        // TODO - implement the logic of the server, according to the protocol.
-        // Take a look at the tutorial to understand the basic blocks: creating a listening socket,
-        // accepting the next client connection, sending and receiving messages and closing the connection
-
         try {
-            ServerSocket welcomeSocket = new ServerSocket(PORT);
-            System.out.println("Server started on port " + PORT);
-
-            String response;
-
-            boolean mustRun = true;
-            while (mustRun) {
-                Socket clientSocket = welcomeSocket.accept();
-
-
-                InputStreamReader reader = new InputStreamReader(clientSocket.getInputStream());
-                BufferedReader bufReader = new BufferedReader(reader);
-
-                String clientInput = bufReader.readLine();
-                System.out.println("Client sent: " + clientInput);
-                String[] parts = clientInput.split(" ");
-
-                if (parts.length == 3) {
-                    response = parts[0] + " " + parts[1].toUpperCase() + " " + parts[2];
-                } else {
-                    response = "ERROR";
-                }
-                PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
-                writer.println(response);
-
-                clientSocket.close();
-
-                welcomeSocket.close();
-
-            }
-
-
+            log("Server started on port " + port);
+            engine.serve(port);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Error, not able to open socket");
-            e.printStackTrace();
+            logger.log(Level.WARNING, "Error, not able to open socket", e);
         } catch (SecurityException s) {
-            logger.log(Level.WARNING, "The operation is not allowed to run");
-            s.printStackTrace();
+            logger.log(Level.WARNING, "The operation is not allowed to run", s);
         } catch (IllegalArgumentException i) {
-            logger.log(Level.WARNING, "The port is invalid");
-            i.printStackTrace();
+            logger.log(Level.WARNING, "The port is invalid", i);
         }
     }
 
+    /**
+     * Stop the server: no more clients are accepted and the open connections are closed.
+     */
+    public void stop() {
+        engine.stop();
+    }
+
     /**
      * Log a message to the system console.
      *
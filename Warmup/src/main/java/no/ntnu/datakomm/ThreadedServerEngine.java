@@ -0,0 +1,143 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A server engine with blocking sockets: one task per connection, run by an executor. The executor decides the
+ * threading model: a fixed pool of platform threads, or one virtual thread per connection. A connection that
+ * arrives when the most connections allowed are open is closed right away, instead of waiting unserved in the
+ * executor's queue until another client leaves.
+ */
+public class ThreadedServerEngine implements ServerEngine {
+    private static final Logger LOGGER = Logger.getLogger(ThreadedServerEngine.class.getName());
+
+    private final ExecutorService executor;
+    // One permit per connection that may be open at the same time
+    private final Semaphore connections;
+    private volatile ServerSocket welcomeSocket;
+
+    /**
+     * @param executor Runs one task for each connection, for as long as the connection is open
+     */
+    public ThreadedServerEngine(ExecutorService executor) {
+        this(executor, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param executor       Runs one task for each connection, for as long as the connection is open
+     * @param maxConnections Most connections open at the same time. Further connections are closed.
+     */
+    public ThreadedServerEngine(ExecutorService executor, int maxConnections) {
+        this.executor = executor;
+        this.connections = new Semaphore(maxConnections);
+    }
+
+    /**
+     * @param threads Number of platform threads. This is also the number of clients served at the same time,
+     *                further clients are turned away.
+     * @return An engine that uses a fixed thread pool
+     */
+    public static ThreadedServerEngine threadPool(int threads) {
+        return new ThreadedServerEngine(Executors.newFixedThreadPool(threads), threads);
+    }
+
+    /**
+     * Create an engine that runs every connection on its own virtual thread. Virtual threads are looked up by
+     * reflection, so the code also compiles and runs on JDKs without them. There the engine uses a cached pool of
+     * platform threads, one per connection.
+     *
+     * @return An engine with a thread per connection
+     */
+    public static ThreadedServerEngine virtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new ThreadedServerEngine((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.WARNING, "Virtual threads are not available, using a platform thread per connection");
+            return new ThreadedServerEngine(Executors.newCachedThreadPool());
+        }
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        welcomeSocket = new ServerSocket(port);
+        try {
+            while (!welcomeSocket.isClosed()) {
+                Socket clientSocket = welcomeSocket.accept();
+                if (!connections.tryAcquire()) {
+                    LOGGER.log(Level.INFO, "Too many connections, turning away "
+                            + clientSocket.getRemoteSocketAddress());
+                    clientSocket.close();
+                    continue;
+                }
+                clientSocket.setTcpNoDelay(true);
+                executor.execute(() -> {
+                    try {
+                        handleClient(clientSocket);
+                    } finally {
+                        connections.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (!welcomeSocket.isClosed()) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (welcomeSocket != null) {
+                welcomeSocket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not close the welcome socket", e);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Serve one client until it says game over or closes the connection.
+     *
+     * @param clientSocket The client's socket
+     */
+    private void handleClient(Socket clientSocket) {
+        try (Socket socket = clientSocket;
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(
+                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String request;
+            while ((request = reader.readLine()) != null) {
+                String response = ArithmeticProtocol.respond(request);
+                if (response == null) {
+                    break;
+                }
+                writer.write(response);
+                writer.write('\n');
+                // Pipelined requests already waiting get their answers in one write
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Client connection failed", e);
+        }
+    }
+}